@@ -0,0 +1,107 @@
+package com.github.pms1.e3.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.github.pms1.e3.launcher.BenchmarkHooks;
+import com.github.pms1.e3.launcher.BenchmarkHooks.EmbeddedJar;
+
+/**
+ * Resolving the {@code embedded:} URLs of all nested bundles, through the
+ * class loader of the embedded jar as before and through the index of the
+ * launcher. The {@code open} benchmarks also read the first bytes of each
+ * bundle, as the framework does when installing it.
+ *
+ * @author pms1
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class EmbeddedUrlBenchmark {
+
+	@Param({ "10", "100", "1000" })
+	int bundles;
+
+	private Path dir;
+
+	private URL jarUrl;
+
+	private URLClassLoader loader;
+
+	private EmbeddedJar resources;
+
+	private String[] names;
+
+	private final byte[] buffer = new byte[4096];
+
+	@Setup
+	public void setup() throws IOException {
+		dir = Files.createTempDirectory("e3-bench");
+		Path jar = SyntheticBundles.writeEmbeddedJar(dir.resolve("embedded.jar"), bundles);
+		jarUrl = jar.toUri().toURL();
+		loader = new URLClassLoader(new URL[] { jarUrl }, null);
+		resources = BenchmarkHooks.openEmbeddedJar(jar, Runtime.getRuntime().availableProcessors());
+
+		names = new String[bundles];
+		for (int i = 0; i != bundles; ++i)
+			names[i] = SyntheticBundles.getFile(i);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		loader.close();
+		resources.close();
+		BenchmarkHooks.delete(dir);
+	}
+
+	@Benchmark
+	public void classLoader(Blackhole bh) {
+		for (String name : names)
+			bh.consume(loader.getResource(name));
+	}
+
+	@Benchmark
+	public void embeddedResources(Blackhole bh) {
+		for (String name : names)
+			bh.consume(resources.getEntry(name));
+	}
+
+	@Benchmark
+	public void classLoaderOpen(Blackhole bh) throws IOException {
+		for (String name : names)
+			try (InputStream in = loader.getResource(name).openStream()) {
+				bh.consume(in.read(buffer));
+			}
+	}
+
+	@Benchmark
+	public void embeddedResourcesOpen(Blackhole bh) throws IOException {
+		for (String name : names)
+			try (InputStream in = resources.openConnection(jarUrl, name).getInputStream()) {
+				bh.consume(in.read(buffer));
+			}
+	}
+}
@@ -0,0 +1,88 @@
+package com.github.pms1.e3.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.launch.Framework;
+
+import com.github.pms1.e3.launcher.BenchmarkHooks;
+import com.github.pms1.e3.launcher.BenchmarkHooks.Bundles;
+import com.github.pms1.e3.launcher.BenchmarkHooks.StorageArea;
+
+/**
+ * {@code E3Main1.installBundles} into a new framework. Each invocation starts
+ * with an empty storage area, like a launch with temporary storage.
+ *
+ * The bundles are installed from {@code file:} URLs, so the framework copies
+ * them into its storage like it does for {@code embedded:} URLs.
+ *
+ * @author pms1
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class InstallBenchmark {
+
+	@Param({ "10", "100", "1000" })
+	int bundles;
+
+	@Param({ "1", "4" })
+	int parallelism;
+
+	private Path dir;
+
+	private StorageArea storage;
+
+	private Framework framework;
+
+	private Bundles bs;
+
+	@Setup(Level.Trial)
+	public void setupTrial() throws IOException {
+		dir = Files.createTempDirectory("e3-bench");
+		SyntheticBundles.writeBundles(dir, bundles);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDownTrial() throws IOException {
+		BenchmarkHooks.delete(dir);
+	}
+
+	@Setup(Level.Invocation)
+	public void setup() throws IOException, BundleException {
+		storage = BenchmarkHooks.createTemporaryStorage(dir);
+		framework = SyntheticBundles.startFramework(storage.getConfiguration());
+		bs = BenchmarkHooks.parseBundles(SyntheticBundles.getSpec(bundles));
+	}
+
+	@TearDown(Level.Invocation)
+	public void tearDown() throws IOException, BundleException, InterruptedException {
+		SyntheticBundles.stopFramework(framework);
+		BenchmarkHooks.delete(storage.getConfiguration());
+	}
+
+	@Benchmark
+	public void installBundles() throws BundleException, IOException, InterruptedException {
+		BenchmarkHooks.installBundles(framework.getBundleContext(), bs, storage, dir, false, parallelism);
+	}
+}
@@ -0,0 +1,64 @@
+package com.github.pms1.e3.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.pms1.e3.launcher.BenchmarkHooks;
+import com.github.pms1.e3.launcher.BenchmarkHooks.Bundles;
+
+/**
+ * Reading {@code launcher.properties} and parsing its {@code osgi.bundles}.
+ *
+ * @author pms1
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class LauncherPropertiesBenchmark {
+
+	@Param({ "10", "100", "1000" })
+	int bundles;
+
+	private byte[] properties;
+
+	private String spec;
+
+	@Setup
+	public void setup() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		SyntheticBundles.getLauncherProperties(bundles).store(out, "");
+		properties = out.toByteArray();
+		spec = SyntheticBundles.getSpec(bundles);
+	}
+
+	@Benchmark
+	public Properties load() throws IOException {
+		Properties result = new Properties();
+		result.load(new ByteArrayInputStream(properties));
+		return result;
+	}
+
+	@Benchmark
+	public Bundles parseBundles() {
+		return BenchmarkHooks.parseBundles(spec);
+	}
+}
@@ -0,0 +1,90 @@
+package com.github.pms1.e3.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.launch.Framework;
+import org.osgi.framework.wiring.FrameworkWiring;
+
+import com.github.pms1.e3.launcher.BenchmarkHooks;
+import com.github.pms1.e3.launcher.BenchmarkHooks.Bundles;
+import com.github.pms1.e3.launcher.BenchmarkHooks.StorageArea;
+
+/**
+ * The start-level loop of {@code E3Main1.startBundles}, which resolves and
+ * starts the bundles of each start level, on freshly installed bundles.
+ *
+ * @author pms1
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class StartLevelBenchmark {
+
+	@Param({ "10", "100", "1000" })
+	int bundles;
+
+	@Param({ "1", "4" })
+	int parallelism;
+
+	private Path dir;
+
+	private StorageArea storage;
+
+	private Framework framework;
+
+	private Bundles bs;
+
+	@Setup(Level.Trial)
+	public void setupTrial() throws IOException {
+		dir = Files.createTempDirectory("e3-bench");
+		SyntheticBundles.writeBundles(dir, bundles);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDownTrial() throws IOException {
+		BenchmarkHooks.delete(dir);
+	}
+
+	@Setup(Level.Invocation)
+	public void setup() throws IOException, BundleException, InterruptedException {
+		storage = BenchmarkHooks.createTemporaryStorage(dir);
+		framework = SyntheticBundles.startFramework(storage.getConfiguration());
+		bs = BenchmarkHooks.parseBundles(SyntheticBundles.getSpec(bundles));
+		BenchmarkHooks.installBundles(framework.getBundleContext(), bs, storage, dir, true,
+				Runtime.getRuntime().availableProcessors());
+	}
+
+	@TearDown(Level.Invocation)
+	public void tearDown() throws IOException, BundleException, InterruptedException {
+		SyntheticBundles.stopFramework(framework);
+		BenchmarkHooks.delete(storage.getConfiguration());
+	}
+
+	@Benchmark
+	public void startBundles() throws BundleException, IOException, InterruptedException {
+		BenchmarkHooks.startBundles(framework.adapt(FrameworkWiring.class), bs, SyntheticBundles.START_LEVELS,
+				Bundle.START_TRANSIENT, parallelism);
+	}
+}
@@ -0,0 +1,462 @@
+package com.github.pms1.e3.benchmarks;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.Attributes;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+import com.github.pms1.e3.launcher.BenchmarkHooks;
+
+/**
+ * End-to-end startup benchmark over synthetic products.
+ *
+ * For each product shape it generates an Equinox product, creates an embedded
+ * jar from it with the {@code create-embedded} goal, and launches it
+ * repeatedly, interleaved with launches of the unpacked product through
+ * {@code EclipseStarter}. It reports percentiles of the time from starting the
+ * JVM until the application bundle is started, and of the peak RSS of the JVM
+ * up to then.
+ *
+ * The application is a bundle in the last start level, whose activator prints
+ * a marker line with {@code VmHWM} from {@code /proc/self/status} (so memory
+ * is only reported on Linux). The process is stopped once the marker has been
+ * read. The other bundles form import chains like {@link SyntheticBundles}, and
+ * their activators spin for a configurable time.
+ *
+ * The e3-maven-plugin must be installed in the local repository, and the
+ * harness must run on a JDK. Usage:
+ *
+ * <pre>
+ * mvn -Pbenchmarks install
+ * java -Dbench.bundles=10,100 -cp e3-benchmarks/target/benchmarks.jar com.github.pms1.e3.benchmarks.StartupBenchmark
+ * </pre>
+ *
+ * System properties (lists are comma separated, all combinations are run):
+ * <ul>
+ * <li>{@code bench.bundles}: number of bundles, default {@code 10,100,1000}
+ * <li>{@code bench.startLevels}: number of start levels the bundles are spread
+ * over, 1 to 9, default {@code 1,4}
+ * <li>{@code bench.activatorMicros}: time each activator spins, default
+ * {@code 0,200}
+ * <li>{@code bench.extensions}: number of framework extensions, default
+ * {@code 0,2}
+ * <li>{@code bench.runs}: measured launches per variant, default {@code 20}
+ * <li>{@code bench.warmup}: launches per variant that are not measured, default
+ * {@code 2}
+ * <li>{@code bench.dir}: work directory, default {@code target/startup}
+ * <li>{@code bench.mvn}: the maven executable, default {@code mvn}
+ * <li>{@code bench.java}: the java executable of the launches, default the
+ * running one
+ * <li>{@code bench.jvmArgs}: additional JVM arguments of the launches, space
+ * separated
+ * </ul>
+ *
+ * @author pms1
+ *
+ */
+public class StartupBenchmark {
+
+	static final String MARKER = "E3-BENCH-APPLICATION";
+
+	private static final long TIMEOUT_SECONDS = 120;
+
+	private static final int IMPORTS = 3;
+
+	static class Shape {
+		final int bundles;
+		final int startLevels;
+		final int activatorMicros;
+		final int extensions;
+
+		Shape(int bundles, int startLevels, int activatorMicros, int extensions) {
+			if (startLevels < 1 || startLevels > 9)
+				throw new IllegalArgumentException("start levels must be 1 to 9: " + startLevels);
+			this.bundles = bundles;
+			this.startLevels = startLevels;
+			this.activatorMicros = activatorMicros;
+			this.extensions = extensions;
+		}
+
+		String getName() {
+			return "b" + bundles + "-l" + startLevels + "-a" + activatorMicros + "-e" + extensions;
+		}
+	}
+
+	static class Variant {
+		final String name;
+		final List<String> command;
+		final Path dir;
+		final List<Long> nanos = new ArrayList<>();
+		final List<Long> rss = new ArrayList<>();
+
+		Variant(String name, List<String> command, Path dir) {
+			this.name = name;
+			this.command = command;
+			this.dir = dir;
+		}
+	}
+
+	private final Properties configuration;
+	private final Path osgiJar;
+	private final String java;
+	private final List<String> jvmArgs;
+
+	StartupBenchmark() throws IOException {
+		configuration = new Properties();
+		try (InputStream in = StartupBenchmark.class.getResourceAsStream("/startup-benchmark.properties")) {
+			configuration.load(in);
+		}
+		osgiJar = Paths.get(configuration.getProperty("osgi.jar"));
+		java = System.getProperty("bench.java", Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+		String a = System.getProperty("bench.jvmArgs", "").trim();
+		jvmArgs = a.isEmpty() ? new ArrayList<>() : Arrays.asList(a.split("\\s+"));
+	}
+
+	public static void main(String[] args) throws Exception {
+		StartupBenchmark benchmark = new StartupBenchmark();
+
+		Path base = Paths.get(System.getProperty("bench.dir", "target/startup")).toAbsolutePath();
+		int runs = Integer.getInteger("bench.runs", 20);
+		int warmup = Integer.getInteger("bench.warmup", 2);
+
+		List<Shape> shapes = new ArrayList<>();
+		for (int bundles : getInts("bench.bundles", "10,100,1000"))
+			for (int startLevels : getInts("bench.startLevels", "1,4"))
+				for (int activatorMicros : getInts("bench.activatorMicros", "0,200"))
+					for (int extensions : getInts("bench.extensions", "0,2"))
+						shapes.add(new Shape(bundles, startLevels, activatorMicros, extensions));
+
+		Map<Shape, List<Variant>> results = new LinkedHashMap<>();
+		for (Shape shape : shapes) {
+			System.out.println("Benchmarking " + shape.getName());
+			results.put(shape, benchmark.run(base.resolve(shape.getName()), shape, warmup, runs));
+		}
+
+		System.out.println();
+		System.out.printf("%-24s %-16s %8s %8s %8s %8s %8s %8s%n", "shape", "variant", "p50 ms", "p90 ms",
+				"max ms", "p50 MB", "p90 MB", "max MB");
+		for (Map.Entry<Shape, List<Variant>> e : results.entrySet())
+			for (Variant v : e.getValue())
+				System.out.printf("%-24s %-16s %8.1f %8.1f %8.1f %8.1f %8.1f %8.1f%n", e.getKey().getName(), v.name,
+						percentile(v.nanos, 50) / 1e6, percentile(v.nanos, 90) / 1e6, percentile(v.nanos, 100) / 1e6,
+						percentile(v.rss, 50) / 1024.0, percentile(v.rss, 90) / 1024.0,
+						percentile(v.rss, 100) / 1024.0);
+	}
+
+	private static List<Integer> getInts(String key, String defaultValue) {
+		return Arrays.stream(System.getProperty(key, defaultValue).split(",")).map(String::trim)
+				.map(Integer::valueOf).collect(Collectors.toList());
+	}
+
+	/**
+	 * @return the nearest-rank percentile, or -1 if there are no values
+	 */
+	static long percentile(List<Long> values, int p) {
+		if (values.isEmpty())
+			return -1;
+		List<Long> sorted = new ArrayList<>(values);
+		sorted.sort(null);
+		int rank = (int) Math.ceil(p / 100.0 * sorted.size());
+		return sorted.get(Math.max(0, rank - 1));
+	}
+
+	List<Variant> run(Path dir, Shape shape, int warmup, int runs) throws IOException, InterruptedException {
+		if (Files.exists(dir))
+			BenchmarkHooks.delete(dir);
+		Path product = dir.resolve("product");
+		generateProduct(product, shape);
+		Path zip = zip(product, dir.resolve("product.zip"));
+		Path jar = createEmbedded(dir, zip);
+
+		List<String> embedded = new ArrayList<>();
+		embedded.add(java);
+		embedded.addAll(jvmArgs);
+		embedded.add("-jar");
+		embedded.add(jar.toString());
+
+		// like the equinox launcher, but without it
+		List<String> starter = new ArrayList<>();
+		starter.add(java);
+		starter.addAll(jvmArgs);
+		starter.add("-Dosgi.noShutdown=false");
+		starter.add("-Dosgi.install.area=" + product.toUri());
+		starter.add("-cp");
+		starter.add(product.resolve("plugins").resolve(osgiJar.getFileName()).toString());
+		starter.add("org.eclipse.core.runtime.adaptor.EclipseStarter");
+		starter.add("-configuration");
+		starter.add(product.resolve("configuration").toUri().toString());
+		starter.add("-clean");
+
+		List<Variant> variants = Arrays.asList(new Variant("embedded", embedded, dir),
+				new Variant("eclipsestarter", starter, product));
+
+		for (int i = 0; i != warmup + runs; ++i) {
+			for (Variant v : variants) {
+				long[] result = launch(v.command, v.dir);
+				if (i >= warmup) {
+					v.nanos.add(result[0]);
+					if (result[1] >= 0)
+						v.rss.add(result[1]);
+				}
+			}
+		}
+
+		return variants;
+	}
+
+	/**
+	 * @return the nanoseconds until the marker was printed and the peak RSS in
+	 *         KiB or -1
+	 */
+	static long[] launch(List<String> command, Path dir) throws IOException, InterruptedException {
+		ProcessBuilder pb = new ProcessBuilder(command).directory(dir.toFile()).redirectErrorStream(true);
+
+		long start = System.nanoTime();
+		Process p = pb.start();
+
+		Thread watchdog = new Thread(() -> {
+			try {
+				if (!p.waitFor(TIMEOUT_SECONDS, TimeUnit.SECONDS))
+					p.destroyForcibly();
+			} catch (InterruptedException e) {
+				p.destroyForcibly();
+			}
+		});
+		watchdog.setDaemon(true);
+		watchdog.start();
+
+		Deque<String> tail = new ArrayDeque<>();
+		try (BufferedReader r = new BufferedReader(
+				new InputStreamReader(p.getInputStream(), StandardCharsets.UTF_8))) {
+			for (String line; (line = r.readLine()) != null;) {
+				if (line.startsWith(MARKER)) {
+					long nanos = System.nanoTime() - start;
+					long rss = Long.parseLong(line.substring(MARKER.length()).trim());
+					p.destroy();
+					p.waitFor();
+					return new long[] { nanos, rss };
+				}
+				tail.addLast(line);
+				if (tail.size() > 20)
+					tail.removeFirst();
+			}
+		} finally {
+			p.destroyForcibly();
+		}
+
+		throw new IOException("No application start in output of " + command + ", exit code " + p.waitFor() + ":\n"
+				+ String.join("\n", tail));
+	}
+
+	/**
+	 * Build the embedded jar of {@code productZip} with a generated project.
+	 */
+	Path createEmbedded(Path dir, Path productZip) throws IOException, InterruptedException {
+		Path project = dir.resolve("embedded");
+		Files.createDirectories(project);
+		String pom = "<project xmlns=\"http://maven.apache.org/POM/4.0.0\">\n" //
+				+ "  <modelVersion>4.0.0</modelVersion>\n" //
+				+ "  <groupId>bench</groupId>\n" //
+				+ "  <artifactId>embedded</artifactId>\n" //
+				+ "  <version>1</version>\n" //
+				+ "  <packaging>equinox-embedded-jar</packaging>\n" //
+				+ "  <dependencies>\n" //
+				+ "    <dependency>\n" //
+				+ "      <groupId>bench</groupId>\n" //
+				+ "      <artifactId>product</artifactId>\n" //
+				+ "      <version>1</version>\n" //
+				+ "      <type>zip</type>\n" //
+				+ "      <scope>system</scope>\n" //
+				+ "      <systemPath>" + productZip + "</systemPath>\n" //
+				+ "    </dependency>\n" //
+				+ "  </dependencies>\n" //
+				+ "  <build>\n" //
+				+ "    <plugins>\n" //
+				+ "      <plugin>\n" //
+				+ "        <groupId>com.github.pms1.e3</groupId>\n" //
+				+ "        <artifactId>e3-maven-plugin</artifactId>\n" //
+				+ "        <version>" + configuration.getProperty("e3.version") + "</version>\n" //
+				+ "        <extensions>true</extensions>\n" //
+				+ "      </plugin>\n" //
+				+ "    </plugins>\n" //
+				+ "  </build>\n" //
+				+ "</project>\n";
+		Files.write(project.resolve("pom.xml"), pom.getBytes(StandardCharsets.UTF_8));
+
+		Process p = new ProcessBuilder(System.getProperty("bench.mvn", "mvn"), "-B", "-q", "package")
+				.directory(project.toFile()).inheritIO().start();
+		int exitCode = p.waitFor();
+		if (exitCode != 0)
+			throw new IOException("create-embedded failed with exit code " + exitCode);
+
+		return project.resolve("target/embedded-1.jar");
+	}
+
+	/**
+	 * Generate the product: the framework, the bundles and the application
+	 * bundle in {@code plugins}, and a {@code configuration/config.ini}.
+	 */
+	void generateProduct(Path product, Shape shape) throws IOException {
+		Path plugins = product.resolve("plugins");
+		Files.createDirectories(plugins);
+		Files.copy(osgiJar, plugins.resolve(osgiJar.getFileName()));
+
+		Path src = product.getParent().resolve("src");
+		List<Path> sources = new ArrayList<>();
+		for (int i = 0; i != shape.bundles; ++i)
+			sources.add(writeSource(src, "bench.b" + i, "long end = System.nanoTime() + " + shape.activatorMicros
+					+ "000L;\n\t\twhile (System.nanoTime() < end)\n\t\t\t;\n"));
+		sources.add(writeSource(src, "bench.app",
+				"long rss = -1;\n" //
+						+ "\t\tjava.nio.file.Path status = java.nio.file.Paths.get(\"/proc/self/status\");\n"
+						+ "\t\tif (java.nio.file.Files.isReadable(status))\n"
+						+ "\t\t\tfor (String l : java.nio.file.Files.readAllLines(status))\n"
+						+ "\t\t\t\tif (l.startsWith(\"VmHWM:\"))\n"
+						+ "\t\t\t\t\trss = Long.parseLong(l.replaceAll(\"[^0-9]\", \"\"));\n"
+						+ "\t\tSystem.out.println(\"" + MARKER + " \" + rss);\n" //
+						+ "\t\tSystem.out.flush();\n"));
+
+		Path classes = product.getParent().resolve("classes");
+		compile(sources, classes);
+
+		List<String> bundles = new ArrayList<>();
+		for (int i = 0; i != shape.bundles; ++i) {
+			List<String> imports = new ArrayList<>();
+			for (int j = Math.max(0, i - IMPORTS); j != i; ++j)
+				imports.add("bench.b" + j);
+			String file = writeBundle(plugins, classes, "bench.b" + i, imports);
+			bundles.add("reference:file:" + file + "@" + (1 + i % shape.startLevels) + ":start");
+		}
+		bundles.add("reference:file:" + writeBundle(plugins, classes, "bench.app", Arrays.asList()) + "@"
+				+ shape.startLevels + ":start");
+
+		List<String> extensions = new ArrayList<>();
+		for (int i = 0; i != shape.extensions; ++i)
+			extensions.add("reference:file:" + writeExtension(plugins, "bench.ext" + i));
+
+		Properties config = new Properties();
+		config.put("osgi.framework", "file:plugins/" + osgiJar.getFileName());
+		config.put("osgi.bundles", String.join(",", bundles));
+		if (!extensions.isEmpty())
+			config.put("osgi.framework.extensions", String.join(",", extensions));
+		config.put("osgi.bundles.defaultStartLevel", Integer.toString(shape.startLevels));
+		config.put("eclipse.ignoreApp", "true");
+		Files.createDirectories(product.resolve("configuration"));
+		try (OutputStream out = Files.newOutputStream(product.resolve("configuration/config.ini"))) {
+			config.store(out, null);
+		}
+	}
+
+	private static Path writeSource(Path src, String pkg, String start) throws IOException {
+		Path file = src.resolve(pkg.replace('.', '/')).resolve("Activator.java");
+		Files.createDirectories(file.getParent());
+		String source = "package " + pkg + ";\n\n" //
+				+ "public class Activator implements org.osgi.framework.BundleActivator {\n" //
+				+ "\tpublic void start(org.osgi.framework.BundleContext context) throws Exception {\n" //
+				+ "\t\t" + start //
+				+ "\t}\n\n" //
+				+ "\tpublic void stop(org.osgi.framework.BundleContext context) {\n" //
+				+ "\t}\n" //
+				+ "}\n";
+		Files.write(file, source.getBytes(StandardCharsets.UTF_8));
+		return file;
+	}
+
+	private void compile(List<Path> sources, Path classes) throws IOException {
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		if (compiler == null)
+			throw new IOException("The benchmark must run on a JDK to compile the activators");
+
+		Files.createDirectories(classes);
+		List<String> args = new ArrayList<>(Arrays.asList("-nowarn", "-d", classes.toString(), "-cp",
+				osgiJar.toString()));
+		for (Path s : sources)
+			args.add(s.toString());
+		if (compiler.run(null, null, null, args.toArray(new String[0])) != 0)
+			throw new IOException("Failed to compile the activators");
+	}
+
+	private static String writeBundle(Path plugins, Path classes, String name, List<String> imports)
+			throws IOException {
+		Manifest manifest = new Manifest();
+		Attributes attributes = manifest.getMainAttributes();
+		attributes.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+		attributes.putValue("Bundle-ManifestVersion", "2");
+		attributes.putValue("Bundle-SymbolicName", name);
+		attributes.putValue("Bundle-Version", "1.0.0");
+		attributes.putValue("Bundle-Activator", name + ".Activator");
+		attributes.putValue("Export-Package", name);
+		List<String> allImports = new ArrayList<>(imports);
+		allImports.add("org.osgi.framework");
+		attributes.putValue("Import-Package", String.join(",", allImports));
+
+		String file = name + "_1.0.0.jar";
+		Path dir = classes.resolve(name.replace('.', '/'));
+		try (JarOutputStream jar = new JarOutputStream(Files.newOutputStream(plugins.resolve(file)), manifest);
+				Stream<Path> files = Files.list(dir)) {
+			for (Path p : (Iterable<Path>) files::iterator) {
+				jar.putNextEntry(new ZipEntry(name.replace('.', '/') + "/" + p.getFileName()));
+				Files.copy(p, jar);
+				jar.closeEntry();
+			}
+		}
+		return file;
+	}
+
+	private static String writeExtension(Path plugins, String name) throws IOException {
+		Manifest manifest = new Manifest();
+		Attributes attributes = manifest.getMainAttributes();
+		attributes.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+		attributes.putValue("Bundle-ManifestVersion", "2");
+		attributes.putValue("Bundle-SymbolicName", name);
+		attributes.putValue("Bundle-Version", "1.0.0");
+		attributes.putValue("Fragment-Host", "system.bundle; extension:=framework");
+		attributes.putValue("Export-Package", name);
+
+		String file = name + "_1.0.0.jar";
+		try (JarOutputStream jar = new JarOutputStream(Files.newOutputStream(plugins.resolve(file)), manifest)) {
+			jar.putNextEntry(new ZipEntry(name.replace('.', '/') + "/extension.properties"));
+			jar.write(("name=" + name + "\n").getBytes(StandardCharsets.UTF_8));
+			jar.closeEntry();
+		}
+		return file;
+	}
+
+	private static Path zip(Path dir, Path zip) throws IOException {
+		try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(zip));
+				Stream<Path> files = Files.walk(dir)) {
+			for (Path p : (Iterable<Path>) files.sorted()::iterator) {
+				if (!Files.isRegularFile(p))
+					continue;
+				out.putNextEntry(new ZipEntry(dir.relativize(p).toString().replace('\\', '/')));
+				Files.copy(p, out);
+				out.closeEntry();
+			}
+		}
+		return zip;
+	}
+}
@@ -0,0 +1,159 @@
+package com.github.pms1.e3.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.ServiceLoader;
+import java.util.jar.Attributes;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.osgi.framework.BundleException;
+import org.osgi.framework.Constants;
+import org.osgi.framework.launch.Framework;
+import org.osgi.framework.launch.FrameworkFactory;
+
+/**
+ * Generates synthetic bundles for the benchmarks.
+ *
+ * Bundle {@code i} exports the package {@code bench.b<i>} and imports the
+ * packages of the {@value #IMPORTS} bundles before it, so that resolving them
+ * has to wire a chain. The bundles are spread over {@value #START_LEVELS}
+ * start levels and all of them are started.
+ *
+ * @author pms1
+ *
+ */
+final class SyntheticBundles {
+
+	static final int IMPORTS = 3;
+
+	static final int START_LEVELS = 4;
+
+	private static final int RESOURCES = 8;
+
+	private SyntheticBundles() {
+	}
+
+	static String getFile(int i) {
+		return "plugins/bench.b" + i + "_1.0.0.jar";
+	}
+
+	/**
+	 * @return the {@code osgi.bundles} property for {@code n} bundles
+	 */
+	static String getSpec(int n) {
+		StringBuilder result = new StringBuilder();
+		for (int i = 0; i != n; ++i) {
+			if (i != 0)
+				result.append(',');
+			result.append(getFile(i)).append('@').append(1 + i % START_LEVELS).append(":start");
+		}
+		return result.toString();
+	}
+
+	static Properties getLauncherProperties(int n) {
+		Properties properties = new Properties();
+		properties.put("osgi.bundles", getSpec(n));
+		properties.put("configuration.copy", "");
+		properties.put("framework.osgi.bundles.defaultStartLevel", Integer.toString(START_LEVELS));
+		properties.put("framework.eclipse.ignoreApp", "true");
+		properties.put("e3.storage", "temporary");
+		return properties;
+	}
+
+	static byte[] createBundle(int i) throws IOException {
+		Manifest manifest = new Manifest();
+		Attributes attributes = manifest.getMainAttributes();
+		attributes.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+		attributes.putValue(Constants.BUNDLE_MANIFESTVERSION, "2");
+		attributes.putValue(Constants.BUNDLE_SYMBOLICNAME, "bench.b" + i);
+		attributes.putValue(Constants.BUNDLE_VERSION, "1.0.0");
+		attributes.putValue(Constants.EXPORT_PACKAGE, "bench.b" + i + ";version=\"1.0.0\"");
+		StringBuilder imports = new StringBuilder();
+		for (int j = Math.max(0, i - IMPORTS); j != i; ++j) {
+			if (imports.length() != 0)
+				imports.append(',');
+			imports.append("bench.b").append(j).append(";version=\"[1.0,2.0)\"");
+		}
+		if (imports.length() != 0)
+			attributes.putValue(Constants.IMPORT_PACKAGE, imports.toString());
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (JarOutputStream jar = new JarOutputStream(out, manifest)) {
+			StringBuilder content = new StringBuilder();
+			for (int k = 0; k != 64; ++k)
+				content.append("bundle ").append(i).append(" line ").append(k).append('\n');
+			for (int r = 0; r != RESOURCES; ++r) {
+				jar.putNextEntry(new ZipEntry("bench/b" + i + "/resource" + r + ".txt"));
+				jar.write(content.toString().getBytes(StandardCharsets.UTF_8));
+				jar.closeEntry();
+			}
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Write {@code n} bundles below {@code dir}.
+	 *
+	 * @return the bundles, in the order of {@link #getSpec(int)}
+	 */
+	static List<Path> writeBundles(Path dir, int n) throws IOException {
+		List<Path> result = new ArrayList<>(n);
+		for (int i = 0; i != n; ++i) {
+			Path p = dir.resolve(getFile(i));
+			Files.createDirectories(p.getParent());
+			Files.write(p, createBundle(i));
+			result.add(p);
+		}
+		return result;
+	}
+
+	/**
+	 * Write an embedded jar with a {@code launcher.properties} and {@code n}
+	 * nested bundles.
+	 */
+	static Path writeEmbeddedJar(Path file, int n) throws IOException {
+		try (OutputStream out = Files.newOutputStream(file); ZipOutputStream zip = new ZipOutputStream(out)) {
+			zip.putNextEntry(new ZipEntry("launcher.properties"));
+			getLauncherProperties(n).store(zip, "");
+			zip.closeEntry();
+
+			for (int i = 0; i != n; ++i) {
+				zip.putNextEntry(new ZipEntry(getFile(i)));
+				zip.write(createBundle(i));
+				zip.closeEntry();
+			}
+		}
+		return file;
+	}
+
+	/**
+	 * Start a framework with its storage in {@code storage}.
+	 */
+	static Framework startFramework(Path storage) throws BundleException {
+		Map<String, String> config = new HashMap<>();
+		config.put(Constants.FRAMEWORK_STORAGE, storage.toString());
+		config.put(Constants.FRAMEWORK_STORAGE_CLEAN, Constants.FRAMEWORK_STORAGE_CLEAN_ONFIRSTINIT);
+		config.put("osgi.bundles.defaultStartLevel", Integer.toString(START_LEVELS));
+
+		Framework framework = ServiceLoader.load(FrameworkFactory.class).iterator().next().newFramework(config);
+		framework.start();
+		return framework;
+	}
+
+	static void stopFramework(Framework framework) throws BundleException, InterruptedException {
+		framework.stop();
+		framework.waitForStop(0);
+	}
+}
@@ -0,0 +1,128 @@
+package com.github.pms1.e3.launcher;
+
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.zip.ZipEntry;
+
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.wiring.FrameworkWiring;
+
+import com.github.pms1.e3.launcher.E3Main1.BundleConfiguration;
+
+/**
+ * Entry points into the stages of the launcher for the benchmarks, so that the
+ * stages themselves can stay package-private. It is in the package of the
+ * launcher, but part of {@code e3-benchmarks}, so it is not embedded.
+ *
+ * @author pms1
+ *
+ */
+public final class BenchmarkHooks {
+
+	private BenchmarkHooks() {
+	}
+
+	/**
+	 * The result of parsing {@code osgi.bundles}.
+	 */
+	public static final class Bundles {
+		private final List<BundleConfiguration> bundles;
+
+		private Bundles(List<BundleConfiguration> bundles) {
+			this.bundles = bundles;
+		}
+
+		public int size() {
+			return bundles.size();
+		}
+	}
+
+	/**
+	 * A temporary storage area of the launcher.
+	 */
+	public static final class StorageArea {
+		private final Storage storage;
+
+		private StorageArea(Storage storage) {
+			this.storage = storage;
+		}
+
+		public Path getConfiguration() {
+			return storage.getConfiguration();
+		}
+	}
+
+	/**
+	 * The index of the embedded jar used by the {@code embedded:} protocol.
+	 */
+	public static final class EmbeddedJar implements AutoCloseable {
+		private final EmbeddedResources resources;
+
+		private EmbeddedJar(EmbeddedResources resources) {
+			this.resources = resources;
+		}
+
+		public ZipEntry getEntry(String name) {
+			return resources.getEntry(name);
+		}
+
+		public URLConnection openConnection(URL url, String name) {
+			return resources.openConnection(url, name);
+		}
+
+		@Override
+		public void close() throws IOException {
+			resources.close();
+		}
+	}
+
+	public static Bundles parseBundles(String spec) {
+		return new Bundles(E3Main1.parseBundles(spec));
+	}
+
+	/**
+	 * Create a temporary storage area in {@code baseDir} like the launcher does,
+	 * to start the framework with.
+	 */
+	public static StorageArea createTemporaryStorage(Path baseDir) throws IOException {
+		return new StorageArea(Storage.createTemporary(baseDir));
+	}
+
+	/**
+	 * Install the bundles from the files below {@code dir}, into the framework
+	 * started with {@code storage}.
+	 *
+	 * @param reference
+	 *            install with {@code reference:} locations, otherwise the
+	 *            framework copies the bundles like it does for {@code embedded:}
+	 *            locations
+	 */
+	public static void installBundles(BundleContext context, Bundles bundles, StorageArea storage, Path dir,
+			boolean reference, int parallelism) throws BundleException, IOException, InterruptedException {
+		E3Main1.installBundles(context, bundles.bundles, storage.storage, file -> {
+			String uri = dir.resolve(file).toUri().toString();
+			return reference ? "reference:" + uri : uri;
+		}, file -> Files.newInputStream(dir.resolve(file)), parallelism);
+	}
+
+	public static void startBundles(FrameworkWiring wiring, Bundles bundles, int maxStartLevel, int options,
+			int parallelism) throws BundleException, IOException, InterruptedException {
+		E3Main1.startBundles(wiring, bundles.bundles, maxStartLevel, options, parallelism, () -> false);
+	}
+
+	public static EmbeddedJar openEmbeddedJar(Path jar, int handles) throws IOException {
+		return new EmbeddedJar(new EmbeddedResources(jar, handles));
+	}
+
+	/**
+	 * Delete {@code dir} like the launcher deletes a temporary storage area.
+	 */
+	public static void delete(Path dir) throws IOException {
+		Storage.delete(dir);
+	}
+}
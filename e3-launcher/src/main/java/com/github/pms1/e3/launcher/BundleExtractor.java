@@ -0,0 +1,261 @@
+package com.github.pms1.e3.launcher;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+
+/**
+ * Makes the nested bundle jars of the embedded jar available as plain files,
+ * so that they can be installed with a {@code reference:} location. Equinox
+ * then reads a referenced bundle in place instead of copying it into the
+ * storage area.
+ *
+ * The files are kept in a cache directory that is shared by all launches and
+ * named after the entry name, size and CRC, so each nested jar is extracted
+ * only once and identical bundles of different embedded jars share a file.
+ * Each use is recorded by the modification time of a {@code .used} marker next
+ * to the file, and a running process renews the markers of the files it uses.
+ * Files that have not been used for {@code maxAge} days are deleted in the
+ * background, so the cache does not keep the bundles of every jar that was ever
+ * launched. A launch holds a shared lock on the marker while it checks and
+ * extracts the file, and the reaper an exclusive one while it deletes it.
+ *
+ * @author pms1
+ *
+ */
+class BundleExtractor {
+
+	static Logger logger = Logger.getLogger(BundleExtractor.class.getName());
+
+	private static final String USED = ".used";
+
+	/**
+	 * How old a marker must be before it is touched again.
+	 */
+	private static final long TOUCH_INTERVAL = TimeUnit.HOURS.toMillis(6);
+
+	/**
+	 * How often a running process renews the markers of the files it uses. With
+	 * {@link #TOUCH_INTERVAL}, a marker in use is never older than a day, the
+	 * smallest {@code maxAge}.
+	 */
+	private static final long RENEW_INTERVAL = TimeUnit.HOURS.toMillis(1);
+
+	private final EmbeddedResources resources;
+	private final Path cacheDir;
+
+	private final Set<Path> used = ConcurrentHashMap.newKeySet();
+
+	private ScheduledExecutorService renewer;
+
+	/**
+	 * @param maxAge
+	 *            the days after their last use that extracted files are kept,
+	 *            {@code 0} to keep them forever
+	 */
+	BundleExtractor(EmbeddedResources resources, Path cacheDir, int maxAge) throws IOException {
+		this.resources = resources;
+		this.cacheDir = cacheDir;
+		Files.createDirectories(cacheDir);
+		if (maxAge > 0)
+			reapUnused(cacheDir, TimeUnit.DAYS.toMillis(maxAge));
+	}
+
+	/**
+	 * @return the location to install the nested jar {@code name} from
+	 */
+	String getLocation(String name) throws IOException {
+		ZipEntry entry = resources.getEntry(name);
+		if (entry == null)
+			throw new IOException("Not found: " + name + " in " + resources.getJar());
+
+		String fileName = name.substring(name.lastIndexOf('/') + 1);
+		Path file = cacheDir.resolve(String.format("%08x-%d-%s", entry.getCrc(), entry.getSize(), fileName));
+
+		// so the file is not reaped between checking and installing it
+		FileChannel channel = lockMarker(file);
+		try {
+			markUsed(file);
+
+			if (!Files.exists(file) || Files.size(file) != entry.getSize()) {
+				logger.fine("extracting bundle " + name + " to " + file);
+
+				Path temp = Files.createTempFile(cacheDir, fileName, ".tmp");
+				try {
+					try (InputStream in = resources.getInputStream(name)) {
+						Files.copy(in, temp, StandardCopyOption.REPLACE_EXISTING);
+					}
+					try {
+						Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+					} catch (FileAlreadyExistsException e) {
+						// extracted concurrently by another process
+					}
+				} finally {
+					Files.deleteIfExists(temp);
+				}
+			}
+		} finally {
+			channel.close();
+		}
+
+		renewMarkers(file);
+
+		return "reference:" + file.toUri();
+	}
+
+	/**
+	 * @return a channel of the marker of {@code file}, with a shared lock on it
+	 */
+	private static FileChannel lockMarker(Path file) throws IOException {
+		Path marker = getMarker(file);
+		for (;;) {
+			FileChannel channel = FileChannel.open(marker, StandardOpenOption.CREATE, StandardOpenOption.READ,
+					StandardOpenOption.WRITE);
+			try {
+				channel.lock(0, Long.MAX_VALUE, true);
+				// unless the reaper deleted it before it was locked
+				if (Files.exists(marker))
+					return channel;
+			} catch (OverlappingFileLockException e) {
+				// locked by the reaper of this process
+				try {
+					Thread.sleep(10);
+				} catch (InterruptedException e1) {
+					Thread.currentThread().interrupt();
+					channel.close();
+					throw new InterruptedIOException();
+				}
+			} catch (IOException | RuntimeException e) {
+				channel.close();
+				throw e;
+			}
+			channel.close();
+		}
+	}
+
+	/**
+	 * Keep the markers of the files used by this process up to date while it
+	 * runs, as Equinox reopens them as needed.
+	 */
+	private synchronized void renewMarkers(Path file) {
+		used.add(file);
+		if (renewer == null) {
+			renewer = Executors.newSingleThreadScheduledExecutor(E3Main1.newThreadFactory("e3-bundle-marker"));
+			renewer.scheduleWithFixedDelay(() -> used.forEach(BundleExtractor::markUsed), RENEW_INTERVAL,
+					RENEW_INTERVAL, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private static Path getMarker(Path file) {
+		return file.resolveSibling(file.getFileName() + USED);
+	}
+
+	private static void markUsed(Path file) {
+		Path marker = getMarker(file);
+		try {
+			long now = System.currentTimeMillis();
+			if (!Files.exists(marker))
+				Files.createFile(marker);
+			else if (now - Files.getLastModifiedTime(marker).toMillis() > TOUCH_INTERVAL)
+				Files.setLastModifiedTime(marker, FileTime.fromMillis(now));
+		} catch (IOException e) {
+			// created concurrently, or the cache is not writable
+			logger.log(Level.FINE, "Failed to mark " + file + " as used: " + e, e);
+		}
+	}
+
+	/**
+	 * Delete the files in {@code cacheDir} that have not been used for
+	 * {@code maxAge} milliseconds, and left over temporary files, in the
+	 * background.
+	 */
+	private static void reapUnused(Path cacheDir, long maxAge) {
+		Thread reaper = new Thread(() -> {
+			long now = System.currentTimeMillis();
+			try (DirectoryStream<Path> files = Files.newDirectoryStream(cacheDir)) {
+				for (Path file : files) {
+					String name = file.getFileName().toString();
+					if (name.endsWith(USED)) {
+						// the file has been deleted by an interrupted reaper
+						Path bundle = file.resolveSibling(name.substring(0, name.length() - USED.length()));
+						if (!Files.exists(bundle))
+							reap(bundle, file, maxAge);
+						continue;
+					}
+
+					if (name.endsWith(".tmp")) {
+						if (now - Files.getLastModifiedTime(file).toMillis() >= TOUCH_INTERVAL)
+							Files.deleteIfExists(file);
+						continue;
+					}
+
+					Path marker = getMarker(file);
+					if (now - Files.getLastModifiedTime(Files.exists(marker) ? marker : file).toMillis() < maxAge)
+						continue;
+
+					reap(file, marker, maxAge);
+				}
+			} catch (IOException | UncheckedIOException e) {
+				logger.log(Level.FINE, "Failed to reap unused bundles in " + cacheDir + ": " + e, e);
+			}
+		}, "e3-bundle-reaper");
+		reaper.setDaemon(true);
+		reaper.start();
+	}
+
+	/**
+	 * Delete {@code file} and its marker unless it is being used or the marker
+	 * was touched since it was found to be unused. A file without a marker gets
+	 * one, and is kept for another {@code maxAge}.
+	 */
+	private static void reap(Path file, Path marker, long maxAge) {
+		try (FileChannel channel = FileChannel.open(marker, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE)) {
+			FileLock lock;
+			try {
+				lock = channel.tryLock();
+			} catch (OverlappingFileLockException e) {
+				lock = null;
+			}
+			if (lock == null)
+				return;
+
+			if (System.currentTimeMillis() - Files.getLastModifiedTime(marker).toMillis() < maxAge)
+				return;
+
+			logger.fine("Deleting unused bundle " + file);
+			Files.deleteIfExists(file);
+		} catch (IOException e) {
+			// still open by another process on Windows
+			logger.log(Level.FINE, "Failed to delete " + file + ": " + e, e);
+			return;
+		}
+
+		// after closing it for Windows, a launch waiting for the lock creates it
+		// again
+		try {
+			Files.deleteIfExists(marker);
+		} catch (IOException e) {
+			logger.log(Level.FINE, "Failed to delete " + marker + ": " + e, e);
+		}
+	}
+}
@@ -0,0 +1,156 @@
+package com.github.pms1.e3.launcher;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * The index of the bundle manifests written by the {@code create-embedded}
+ * goal to {@code bundles.index}. For each nested bundle jar it contains the
+ * symbolic name, version, exported packages and provided capabilities, and the
+ * names of the packages, bundles and capabilities it requires, and the ids of
+ * the applications and products its {@code plugin.xml} declares.
+ *
+ * Only names are indexed, so the bundles needed by a set of bundles are
+ * computed conservatively: every bundle providing a required name is needed,
+ * whatever the resolver would finally wire. Optional and dynamic imports
+ * without wildcards count as required.
+ *
+ * The {@code create-embedded} goal uses it too, to prune the bundles that no
+ * root needs.
+ *
+ * @author pms1
+ *
+ */
+public class BundleIndex {
+
+	private static final Set<String> SYSTEM_BUNDLE = new HashSet<>(Arrays.asList("system.bundle", "org.eclipse.osgi"));
+
+	private final Properties index;
+
+	public BundleIndex(Properties index) {
+		this.index = index;
+	}
+
+	/**
+	 * @return the index, or {@code null} if the embedded jar was created without
+	 *         one
+	 */
+	static BundleIndex load(Function<String, URL> loader) throws IOException {
+		URL url = loader.apply("bundles.index");
+		if (url == null)
+			return null;
+
+		Properties index = new Properties();
+		try (InputStream in = url.openStream()) {
+			index.load(in);
+		}
+		return new BundleIndex(index);
+	}
+
+	public String getSymbolicName(String file) {
+		return index.getProperty(file + ".symbolicName");
+	}
+
+	String getFragmentHost(String file) {
+		return index.getProperty(file + ".fragmentHost");
+	}
+
+	/**
+	 * @return the ids of the applications and products declared in the
+	 *         {@code plugin.xml} of the bundle
+	 */
+	public List<String> getDeclaredIds(String file) {
+		return get(file, "declares");
+	}
+
+	private List<String> get(String file, String key) {
+		String value = index.getProperty(file + "." + key);
+		if (value == null)
+			return Collections.emptyList();
+
+		List<String> result = new ArrayList<>();
+		for (String s : value.split(","))
+			result.add(s);
+		return result;
+	}
+
+	/**
+	 * @return {@code true} if the bundle must always be installed, because it is
+	 *         not indexed or it is a framework extension
+	 */
+	public boolean isRequired(String file) {
+		return getSymbolicName(file) == null || SYSTEM_BUNDLE.contains(getFragmentHost(file));
+	}
+
+	/**
+	 * @return {@code roots} and all bundles of {@code files} that they need
+	 *         transitively, in the order of {@code files}
+	 */
+	public List<String> getClosure(Collection<String> files, Collection<String> roots) {
+		Map<String, List<String>> byPackage = new HashMap<>();
+		Map<String, List<String>> bySymbolicName = new HashMap<>();
+		Map<String, List<String>> byCapability = new HashMap<>();
+		Map<String, List<String>> fragments = new HashMap<>();
+
+		for (String file : files) {
+			for (String p : get(file, "exports"))
+				byPackage.computeIfAbsent(p, k -> new ArrayList<>()).add(file);
+			String symbolicName = getSymbolicName(file);
+			if (symbolicName != null)
+				bySymbolicName.computeIfAbsent(symbolicName, k -> new ArrayList<>()).add(file);
+			for (String c : get(file, "provides")) {
+				byCapability.computeIfAbsent(c, k -> new ArrayList<>()).add(file);
+				// a requirement without a recognizable filter needs any provider
+				int idx = c.indexOf('=');
+				if (idx != -1)
+					byCapability.computeIfAbsent(c.substring(0, idx), k -> new ArrayList<>()).add(file);
+			}
+			String host = getFragmentHost(file);
+			if (host != null)
+				fragments.computeIfAbsent(host, k -> new ArrayList<>()).add(file);
+		}
+
+		Set<String> needed = new LinkedHashSet<>();
+		Deque<String> todo = new ArrayDeque<>(roots);
+		while (!todo.isEmpty()) {
+			String file = todo.removeFirst();
+			if (!needed.add(file))
+				continue;
+
+			List<List<String>> providers = new ArrayList<>();
+			for (String p : get(file, "imports"))
+				providers.add(byPackage.get(p));
+			for (String b : get(file, "requires"))
+				providers.add(bySymbolicName.get(b));
+			for (String c : get(file, "requiredCapabilities"))
+				providers.add(byCapability.get(c));
+			providers.add(bySymbolicName.get(getFragmentHost(file)));
+			providers.add(fragments.get(getSymbolicName(file)));
+
+			for (List<String> p : providers)
+				if (p != null)
+					todo.addAll(p);
+		}
+
+		List<String> result = new ArrayList<>(needed.size());
+		for (String file : files)
+			if (needed.contains(file))
+				result.add(file);
+		return result;
+	}
+}
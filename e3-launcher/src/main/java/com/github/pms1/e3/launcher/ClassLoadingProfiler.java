@@ -0,0 +1,201 @@
+package com.github.pms1.e3.launcher;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.framework.hooks.weaving.WeavingHook;
+import org.osgi.framework.hooks.weaving.WovenClass;
+import org.osgi.framework.hooks.weaving.WovenClassListener;
+
+/**
+ * Records each class defined by a bundle class loader, with its size and the
+ * time needed to define it, and writes a report per bundle and of the slowest
+ * classes.
+ *
+ * The time of a class is measured from the call of the weaving hooks until the
+ * class is defined, so it includes the definition of its super classes, which
+ * happens in between on the same thread. That nested time is subtracted, so the
+ * times of all classes add up.
+ *
+ * @author pms1
+ *
+ */
+class ClassLoadingProfiler implements WeavingHook, WovenClassListener, AutoCloseable {
+
+	static Logger logger = Logger.getLogger(ClassLoadingProfiler.class.getName());
+
+	private static class Load {
+		final String bundle;
+		final String className;
+		final int bytes;
+		final long nanos;
+		final boolean application;
+
+		Load(String bundle, String className, int bytes, long nanos, boolean application) {
+			this.bundle = bundle;
+			this.className = className;
+			this.bytes = bytes;
+			this.nanos = nanos;
+			this.application = application;
+		}
+	}
+
+	private static class Pending {
+		final long start = System.nanoTime();
+		final int bytes;
+		long nested;
+
+		Pending(int bytes) {
+			this.bytes = bytes;
+		}
+	}
+
+	private static class Total {
+		int startup;
+		int application;
+		long bytes;
+		long nanos;
+	}
+
+	private final ThreadLocal<Deque<Pending>> pending = ThreadLocal.withInitial(ArrayDeque::new);
+
+	private final ConcurrentLinkedQueue<Load> loads = new ConcurrentLinkedQueue<>();
+
+	private final Path file;
+	private final int top;
+	private final List<ServiceRegistration<?>> registrations = new ArrayList<>();
+
+	private volatile boolean application;
+
+	private ClassLoadingProfiler(Path file, int top) {
+		this.file = file;
+		this.top = top;
+	}
+
+	/**
+	 * Start recording the classes defined by the bundles of {@code context}.
+	 *
+	 * @param top
+	 *            the number of classes listed in the report
+	 */
+	static ClassLoadingProfiler start(BundleContext context, Path file, int top) {
+		ClassLoadingProfiler profiler = new ClassLoadingProfiler(file, top);
+		profiler.registrations.add(context.registerService(WeavingHook.class, profiler, null));
+		profiler.registrations.add(context.registerService(WovenClassListener.class, profiler, null));
+		return profiler;
+	}
+
+	/**
+	 * Attribute later class loads to the application instead of the startup.
+	 */
+	void applicationStarted() {
+		application = true;
+	}
+
+	@Override
+	public void weave(WovenClass wovenClass) {
+		pending.get().push(new Pending(wovenClass.getBytes().length));
+	}
+
+	@Override
+	public void modified(WovenClass wovenClass) {
+		switch (wovenClass.getState()) {
+		case WovenClass.DEFINED:
+		case WovenClass.DEFINE_FAILED:
+		case WovenClass.TRANSFORMING_FAILED:
+			break;
+		default:
+			return;
+		}
+
+		Deque<Pending> stack = pending.get();
+		Pending p = stack.poll();
+		if (p == null)
+			return;
+
+		long nanos = System.nanoTime() - p.start;
+		Pending outer = stack.peek();
+		if (outer != null)
+			outer.nested += nanos;
+
+		if (wovenClass.getState() == WovenClass.DEFINED)
+			loads.add(new Load(String.valueOf(wovenClass.getBundleWiring().getBundle().getSymbolicName()),
+					wovenClass.getClassName(), p.bytes, nanos - p.nested, application));
+	}
+
+	/**
+	 * Stop recording and write the report. Must be called while the framework
+	 * is still active.
+	 */
+	@Override
+	public void close() throws IOException {
+		for (ServiceRegistration<?> r : registrations) {
+			try {
+				r.unregister();
+			} catch (IllegalStateException e) {
+				// already unregistered
+			}
+		}
+
+		write(file);
+		logger.fine("Wrote class loading profile to " + file);
+	}
+
+	void write(Path file) throws IOException {
+		List<Load> loads = new ArrayList<>(this.loads);
+
+		Map<String, Total> bundles = new HashMap<>();
+		Total all = new Total();
+		for (Load l : loads) {
+			for (Total t : new Total[] { bundles.computeIfAbsent(l.bundle, k -> new Total()), all }) {
+				if (l.application)
+					t.application++;
+				else
+					t.startup++;
+				t.bytes += l.bytes;
+				t.nanos += l.nanos;
+			}
+		}
+
+		List<Map.Entry<String, Total>> byTime = new ArrayList<>(bundles.entrySet());
+		byTime.sort(Comparator.comparingLong((Map.Entry<String, Total> e) -> e.getValue().nanos).reversed());
+
+		loads.sort(Comparator.comparingLong((Load l) -> l.nanos).reversed());
+
+		try (PrintWriter w = new PrintWriter(Files.newBufferedWriter(file, StandardCharsets.UTF_8))) {
+			w.printf("%d classes (%d during startup, %d during application), %d bytes, %d ms%n%n",
+					all.startup + all.application, all.startup, all.application, all.bytes, millis(all.nanos));
+
+			w.printf("%10s %10s %12s %10s  %s%n", "startup", "app", "bytes", "ms", "bundle");
+			for (Map.Entry<String, Total> e : byTime) {
+				Total t = e.getValue();
+				w.printf("%10d %10d %12d %10d  %s%n", t.startup, t.application, t.bytes, millis(t.nanos), e.getKey());
+			}
+
+			w.printf("%nTop %d classes%n", Math.min(top, loads.size()));
+			w.printf("%10s %12s %-11s  %s%n", "us", "bytes", "phase", "class");
+			for (Load l : loads.subList(0, Math.min(top, loads.size())))
+				w.printf("%10d %12d %-11s  %s (%s)%n", TimeUnit.NANOSECONDS.toMicros(l.nanos), l.bytes,
+						l.application ? "application" : "startup", l.className, l.bundle);
+		}
+	}
+
+	private static long millis(long nanos) {
+		return TimeUnit.NANOSECONDS.toMillis(nanos);
+	}
+}
@@ -0,0 +1,854 @@
+package com.github.pms1.e3.launcher;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.ProcessBuilder.Redirect;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Resident daemon mode, enabled by {@code e3.daemon=true}.
+ *
+ * The first launch of an embedded jar spawns a daemon process that starts the
+ * framework and all bundles and then waits for clients. The daemon gets the
+ * JVM options of that launch, except for agents and debuggers. Each launch,
+ * including the first, is a client that forwards its arguments, working
+ * directory, {@code -D} system properties and stdio to the daemon, which runs
+ * the application in its warm JVM. The daemon exits after
+ * {@code e3.daemon.idleTimeout} seconds without clients, and when a client
+ * reports a different hash of the jar than the daemon was started with. The
+ * client then starts a new daemon.
+ *
+ * Clients are served one after the other, as the application runs with the
+ * global {@link System#in}, {@link System#out}, {@link System#err},
+ * {@code user.dir} and system properties of the client. The application must
+ * not call {@link System#exit}, and relative files must be resolved against
+ * {@code user.dir}. A client that arrives while the daemon is busy, or that the
+ * daemon does not start to serve within {@code e3.daemon.handshakeTimeout}
+ * seconds, runs the application in process. The daemon drops clients that do
+ * not send their request within that time.
+ *
+ * The daemon listens on a UNIX domain socket if the JVM supports them (Java 16
+ * and later), otherwise on a loopback TCP port. Its address and a secret token
+ * are published in a file only readable by the user.
+ *
+ * This class is used by {@link E3Main} before the framework class loader is
+ * created, so the client part must not use the framework.
+ *
+ * @author pms1
+ *
+ */
+class Daemon {
+
+	static Logger logger = Logger.getLogger(Daemon.class.getName());
+
+	private static final int MAGIC = 0x45334431;
+
+	private static final int STDOUT = 1;
+	private static final int STDERR = 2;
+	private static final int EXIT = 3;
+	private static final int REFUSED = 4;
+	private static final int STARTED = 5;
+	private static final int BUSY = 6;
+
+	interface Application {
+		int run(String[] args) throws Exception;
+	}
+
+	/**
+	 * Run the application in the daemon for the embedded jar, starting the daemon
+	 * if necessary.
+	 *
+	 * @return the exit code of the application, or {@code null} if the
+	 *         application must be run in this process
+	 */
+	static Integer runClient(URL launcherPropertiesUrl, String[] args) throws IOException {
+		if (launcherPropertiesUrl == null || Boolean.getBoolean("e3.daemon.serve"))
+			return null;
+
+		Properties launcherProperties = new Properties();
+		try (InputStream in = launcherPropertiesUrl.openStream()) {
+			launcherProperties.load(in);
+		}
+		if (!Boolean.parseBoolean(getProperty(launcherProperties, "e3.daemon", "false")))
+			return null;
+
+		Path jar = Storage.getJar(launcherPropertiesUrl);
+		if (jar == null) {
+			logger.warning("Daemon mode requires running from a jar, running in process");
+			return null;
+		}
+
+		Path dir = getDirectory(launcherProperties);
+		String id = getId(jar);
+		String key = Storage.computeKey(jar, launcherPropertiesUrl);
+		long timeout = getHandshakeTimeout(launcherProperties);
+
+		for (int attempt = 0; attempt != 2; ++attempt) {
+			Connection connection = connect(dir, id);
+			if (connection == null)
+				connection = start(dir, id, launcherProperties);
+			if (connection == null)
+				return null;
+
+			try (Connection c = connection) {
+				Integer exitCode = run(c, key, args, getLogFile(dir, id), timeout);
+				if (exitCode != null || !c.retry)
+					return exitCode;
+			}
+		}
+
+		return null;
+	}
+
+	private static class Connection implements AutoCloseable {
+		final SocketChannel channel;
+		final String token;
+		/**
+		 * The daemon has refused the client or closed the connection, so a new
+		 * daemon may serve it.
+		 */
+		boolean retry;
+
+		Connection(SocketChannel channel, String token) {
+			this.channel = channel;
+			this.token = token;
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+
+	/**
+	 * @return the exit code of the application, or {@code null} if the daemon
+	 *         did not start it
+	 */
+	private static Integer run(Connection connection, String key, String[] args, Path log, long timeout) {
+		ScheduledExecutorService watchdog = newTimer("e3-daemon-watchdog");
+		AtomicBoolean timedOut = new AtomicBoolean();
+		ScheduledFuture<?> deadline = watchdog.schedule(() -> {
+			timedOut.set(true);
+			close(connection.channel);
+		}, timeout, TimeUnit.SECONDS);
+
+		boolean started = false;
+		try {
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(newOutputStream(connection.channel)));
+			DataInputStream in = new DataInputStream(new BufferedInputStream(newInputStream(connection.channel)));
+
+			out.writeInt(MAGIC);
+			out.writeUTF(connection.token);
+			out.writeUTF(key);
+			out.writeUTF(System.getProperty("user.dir"));
+			out.writeInt(args.length);
+			for (String arg : args)
+				out.writeUTF(arg);
+			Properties properties = getCommandLineProperties();
+			out.writeInt(properties.size());
+			for (String name : properties.stringPropertyNames()) {
+				out.writeUTF(name);
+				out.writeUTF(properties.getProperty(name));
+			}
+			out.flush();
+
+			for (;;) {
+				int type = in.readByte();
+				switch (type) {
+				case STARTED:
+					// the watchdog may be closing the channel already
+					if (!deadline.cancel(false))
+						throw new ClosedChannelException();
+					started = true;
+					forwardStdin(out);
+					break;
+				case STDOUT:
+				case STDERR:
+					byte[] data = new byte[in.readInt()];
+					in.readFully(data);
+					PrintStream target = type == STDOUT ? System.out : System.err;
+					target.write(data);
+					target.flush();
+					break;
+				case EXIT:
+					return in.readInt();
+				case REFUSED:
+					logger.fine("Daemon refused to run the application: " + in.readUTF());
+					connection.retry = true;
+					return null;
+				case BUSY:
+					logger.fine("Daemon is busy, running in process");
+					return null;
+				default:
+					throw new IOException("Protocol error, unexpected frame " + type);
+				}
+			}
+		} catch (IOException e) {
+			if (timedOut.get() && !started) {
+				logger.warning("Daemon did not start the application within " + timeout + "s, see " + log
+						+ ", running in process");
+				return null;
+			}
+			if (!started) {
+				logger.log(Level.FINE, "Daemon closed the connection: " + e, e);
+				connection.retry = true;
+				return null;
+			}
+			// the application may have had effects already, so it is not run again
+			logger.log(Level.SEVERE, "Daemon failed while running the application, see " + log + ": " + e, e);
+			return 1;
+		} finally {
+			watchdog.shutdownNow();
+		}
+	}
+
+	private static void forwardStdin(DataOutputStream out) {
+		Thread stdin = new Thread(() -> {
+			byte[] buffer = new byte[8192];
+			try {
+				for (int read; (read = System.in.read(buffer)) != -1;) {
+					out.writeInt(read);
+					out.write(buffer, 0, read);
+					out.flush();
+				}
+				out.writeInt(-1);
+				out.flush();
+			} catch (IOException e) {
+				// the application has finished
+			}
+		}, "e3-daemon-stdin");
+		stdin.setDaemon(true);
+		stdin.start();
+	}
+
+	/**
+	 * @return the system properties given with {@code -D} on the command line,
+	 *         with their current values
+	 */
+	private static Properties getCommandLineProperties() {
+		Properties result = new Properties();
+		for (String arg : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+			if (!arg.startsWith("-D"))
+				continue;
+			String name = arg.substring(2).split("=", 2)[0];
+			String value = System.getProperty(name);
+			if (value != null)
+				result.setProperty(name, value);
+		}
+		return result;
+	}
+
+	/**
+	 * @return {@code false} for JVM options of the client that must not be
+	 *         passed to the daemon, as an agent or debugger of the client would
+	 *         fail to attach to it too, e.g. to bind the same debug port
+	 */
+	private static boolean isDaemonOption(String arg) {
+		return !arg.startsWith("-agentlib:") && !arg.startsWith("-agentpath:") && !arg.startsWith("-javaagent:")
+				&& !arg.startsWith("-Xrun") && !arg.equals("-Xdebug");
+	}
+
+	/**
+	 * @return a connection to the running daemon, or {@code null} if there is
+	 *         none
+	 */
+	private static Connection connect(Path dir, String id) throws IOException {
+		Properties info = readInfo(dir, id);
+		if (info == null)
+			return null;
+
+		try {
+			String address = info.getProperty("address");
+			SocketChannel channel;
+			if (address.startsWith("unix:")) {
+				channel = (SocketChannel) SocketChannel.class.getMethod("open", ProtocolFamily.class).invoke(null,
+						getUnixProtocolFamily());
+				try {
+					channel.connect(getUnixAddress(Paths.get(address.substring(5))));
+				} catch (IOException | ReflectiveOperationException e) {
+					channel.close();
+					throw e;
+				}
+			} else {
+				channel = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(),
+						Integer.parseInt(address.substring(4))));
+			}
+			return new Connection(channel, info.getProperty("token"));
+		} catch (IOException | ReflectiveOperationException | RuntimeException e) {
+			logger.log(Level.FINE, "Daemon not reachable: " + e, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Start a daemon and connect to it. Concurrent clients are serialized by a
+	 * file lock, so only one of them starts a daemon.
+	 */
+	private static Connection start(Path dir, String id, Properties launcherProperties) throws IOException {
+		try (FileChannel channel = FileChannel.open(dir.resolve(id + ".lock"), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE)) {
+			// released by closing the channel
+			channel.lock();
+
+			Connection result = connect(dir, id);
+			if (result != null)
+				return result;
+
+			// only daemons started under this lock publish, so this is stale
+			Files.deleteIfExists(getInfoFile(dir, id));
+
+			List<String> command = new ArrayList<>();
+			command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+			for (String arg : ManagementFactory.getRuntimeMXBean().getInputArguments())
+				if (isDaemonOption(arg))
+					command.add(arg);
+			command.add("-De3.daemon.serve=true");
+			command.add("-cp");
+			command.add(System.getProperty("java.class.path"));
+			command.add(E3Main.class.getName());
+
+			Path log = getLogFile(dir, id);
+			logger.fine("Starting daemon " + command + ", logging to " + log);
+			ProcessBuilder pb = new ProcessBuilder(command);
+			pb.redirectErrorStream(true);
+			pb.redirectOutput(Redirect.appendTo(log.toFile()));
+			Process process = pb.start();
+			process.getOutputStream().close();
+
+			long timeout = TimeUnit.SECONDS
+					.toNanos(Long.parseLong(getProperty(launcherProperties, "e3.daemon.startTimeout", "60")));
+			long start = System.nanoTime();
+			while (!Files.exists(getInfoFile(dir, id))) {
+				if (!process.isAlive() || System.nanoTime() - start > timeout) {
+					logger.warning("Failed to start daemon, see " + log + ", running in process");
+					process.destroy();
+					return null;
+				}
+				try {
+					Thread.sleep(20);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while starting daemon", e);
+				}
+			}
+
+			return connect(dir, id);
+		}
+	}
+
+	/**
+	 * Serve clients until the idle timeout expires or a client reports a changed
+	 * jar.
+	 */
+	static void serve(Path jar, URL launcherPropertiesUrl, Properties launcherProperties, Application application)
+			throws IOException {
+		Path dir = getDirectory(launcherProperties);
+		String id = getId(jar);
+		String key = Storage.computeKey(jar, launcherPropertiesUrl);
+		long idleTimeout = Long.parseLong(getProperty(launcherProperties, "e3.daemon.idleTimeout", "600"));
+		long timeout = getHandshakeTimeout(launcherProperties);
+
+		// do not die with the terminal of the client that started the daemon
+		ignoreSignal("INT");
+		ignoreSignal("HUP");
+
+		byte[] random = new byte[16];
+		new SecureRandom().nextBytes(random);
+		String token = toHex(random);
+
+		ServerSocketChannel server;
+		String address;
+		Path socket = dir.resolve(id + ".socket");
+		try {
+			server = (ServerSocketChannel) ServerSocketChannel.class.getMethod("open", ProtocolFamily.class)
+					.invoke(null, getUnixProtocolFamily());
+			Files.deleteIfExists(socket);
+			server.bind(getUnixAddress(socket));
+			address = "unix:" + socket;
+		} catch (ReflectiveOperationException | IllegalArgumentException e) {
+			server = ServerSocketChannel.open();
+			server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+			address = "tcp:" + ((InetSocketAddress) server.getLocalAddress()).getPort();
+			socket = null;
+		}
+
+		// publish atomically, a temporary file is only readable by the user
+		Properties info = new Properties();
+		info.setProperty("address", address);
+		info.setProperty("token", token);
+		Path temp = Files.createTempFile(dir, id, ".tmp");
+		try (OutputStream out = Files.newOutputStream(temp)) {
+			info.store(out, "");
+		}
+		Files.move(temp, getInfoFile(dir, id), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		logger.fine("Daemon listening on " + address);
+
+		ServerSocketChannel publishedServer = server;
+		String publishedAddress = address;
+		Path publishedSocket = socket;
+		ScheduledExecutorService watchdog = newTimer("e3-daemon-watchdog");
+		Runnable stop = () -> {
+			try {
+				publishedServer.close();
+				unpublish(dir, id, publishedAddress, publishedSocket);
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "Failed to stop daemon: " + e, e);
+			}
+		};
+
+		// the application runs in this thread, clients arriving while it is
+		// busy are told so by the acceptor and run in process
+		SynchronousQueue<SocketChannel> clients = new SynchronousQueue<>();
+		AtomicBoolean busy = new AtomicBoolean();
+		Thread acceptor = new Thread(() -> {
+			for (;;) {
+				SocketChannel channel;
+				try {
+					channel = publishedServer.accept();
+				} catch (IOException e) {
+					if (publishedServer.isOpen())
+						logger.log(Level.WARNING, "Failed to accept client: " + e, e);
+					return;
+				}
+				try {
+					// not taken if the daemon is exiting
+					if (busy.get() || !clients.offer(channel, timeout, TimeUnit.SECONDS))
+						refuseBusy(channel, watchdog, timeout);
+				} catch (InterruptedException e) {
+					close(channel);
+					return;
+				}
+			}
+		}, "e3-daemon-accept");
+		acceptor.setDaemon(true);
+		acceptor.start();
+
+		try {
+			for (;;) {
+				SocketChannel channel;
+				try {
+					channel = clients.poll(idleTimeout, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+				if (channel == null) {
+					logger.fine("Daemon idle for " + idleTimeout + "s, exiting");
+					break;
+				}
+
+				busy.set(true);
+				try (SocketChannel c = channel) {
+					if (!serve(c, token, key, stop, application, watchdog, timeout)) {
+						logger.fine("Jar changed, exiting");
+						break;
+					}
+				} catch (IOException e) {
+					logger.log(Level.WARNING, "Failed to serve client: " + e, e);
+				} finally {
+					busy.set(false);
+				}
+			}
+		} finally {
+			stop.run();
+			watchdog.shutdownNow();
+		}
+	}
+
+	private static void refuseBusy(SocketChannel channel, ScheduledExecutorService watchdog, long timeout) {
+		try (SocketChannel c = channel) {
+			ByteBuffer busy = ByteBuffer.allocate(1).put((byte) BUSY);
+			busy.flip();
+			while (busy.hasRemaining())
+				c.write(busy);
+			drain(c, watchdog, timeout);
+		} catch (IOException e) {
+			logger.log(Level.FINE, "Failed to refuse client: " + e, e);
+		}
+	}
+
+	/**
+	 * Read until the client closes the connection, at most {@code timeout}
+	 * seconds, as closing with unread input, e.g. the request or the end of the
+	 * client's stdin, would reset the connection before the client has read the
+	 * last frame.
+	 */
+	private static void drain(SocketChannel channel, ScheduledExecutorService watchdog, long timeout)
+			throws IOException {
+		channel.shutdownOutput();
+		ScheduledFuture<?> deadline = watchdog.schedule(() -> close(channel), timeout, TimeUnit.SECONDS);
+		try {
+			ByteBuffer discard = ByteBuffer.allocate(8192);
+			while (channel.read(discard) != -1)
+				discard.clear();
+		} catch (ClosedChannelException e) {
+			logger.fine("Client did not close the connection within " + timeout + "s");
+		} finally {
+			deadline.cancel(false);
+		}
+	}
+
+	/**
+	 * Remove the info file and socket, unless a new daemon has replaced them
+	 * already.
+	 */
+	private static synchronized void unpublish(Path dir, String id, String address, Path socket)
+			throws IOException {
+		Properties info = readInfo(dir, id);
+		if (info == null || !address.equals(info.getProperty("address")))
+			return;
+
+		Files.deleteIfExists(getInfoFile(dir, id));
+		if (socket != null)
+			Files.deleteIfExists(socket);
+	}
+
+	/**
+	 * @return {@code false} if the daemon must exit
+	 */
+	private static boolean serve(SocketChannel channel, String token, String key, Runnable stop,
+			Application application, ScheduledExecutorService watchdog, long timeout) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(newInputStream(channel)));
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(newOutputStream(channel)));
+
+		String clientKey;
+		String workingDirectory;
+		String[] args;
+		Properties properties = new Properties();
+		ScheduledFuture<?> deadline = watchdog.schedule(() -> close(channel), timeout, TimeUnit.SECONDS);
+		try {
+			if (in.readInt() != MAGIC || !in.readUTF().equals(token)) {
+				logger.warning("Rejected client with invalid token");
+				return true;
+			}
+			clientKey = in.readUTF();
+			workingDirectory = in.readUTF();
+			args = new String[in.readInt()];
+			for (int i = 0; i != args.length; ++i)
+				args[i] = in.readUTF();
+			for (int i = in.readInt(); i != 0; --i)
+				properties.setProperty(in.readUTF(), in.readUTF());
+		} catch (ClosedChannelException e) {
+			logger.warning("Dropped client that did not send its request within " + timeout + "s");
+			return true;
+		} finally {
+			deadline.cancel(false);
+		}
+		// the watchdog may have closed the channel after the request was read
+		if (!channel.isOpen())
+			return true;
+
+		if (!clientKey.equals(key)) {
+			// unpublish before replying, so the client starts a new daemon
+			stop.run();
+			out.writeByte(REFUSED);
+			out.writeUTF("The jar or its configuration has changed since the daemon was started");
+			out.flush();
+			return false;
+		}
+
+		out.writeByte(STARTED);
+		out.flush();
+
+		InputStream oldIn = System.in;
+		PrintStream oldOut = System.out;
+		PrintStream oldErr = System.err;
+		String oldDir = System.getProperty("user.dir");
+		Properties oldProperties = new Properties();
+		for (String name : properties.stringPropertyNames()) {
+			String value = System.getProperty(name);
+			if (value != null)
+				oldProperties.setProperty(name, value);
+		}
+		PrintStream stdout = new PrintStream(new BufferedOutputStream(new FrameOutputStream(out, STDOUT)), true);
+		PrintStream stderr = new PrintStream(new BufferedOutputStream(new FrameOutputStream(out, STDERR)), true);
+
+		int exitCode;
+		System.setIn(new FrameInputStream(in));
+		System.setOut(stdout);
+		System.setErr(stderr);
+		for (String name : properties.stringPropertyNames())
+			System.setProperty(name, properties.getProperty(name));
+		System.setProperty("user.dir", workingDirectory);
+		try {
+			logger.fine("Running application for client in " + workingDirectory);
+			exitCode = application.run(args);
+		} catch (Exception e) {
+			e.printStackTrace(stderr);
+			exitCode = 1;
+		} finally {
+			System.setIn(oldIn);
+			System.setOut(oldOut);
+			System.setErr(oldErr);
+			for (String name : properties.stringPropertyNames())
+				if (oldProperties.containsKey(name))
+					System.setProperty(name, oldProperties.getProperty(name));
+				else
+					System.clearProperty(name);
+			System.setProperty("user.dir", oldDir);
+			stdout.flush();
+			stderr.flush();
+		}
+
+		synchronized (out) {
+			out.writeByte(EXIT);
+			out.writeInt(exitCode);
+			out.flush();
+		}
+
+		drain(channel, watchdog, timeout);
+		return true;
+	}
+
+	/**
+	 * Output of the application, sent as frames of type, length and data.
+	 */
+	private static class FrameOutputStream extends OutputStream {
+		private final DataOutputStream out;
+		private final int type;
+
+		FrameOutputStream(DataOutputStream out, int type) {
+			this.out = out;
+			this.type = type;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return;
+			synchronized (out) {
+				out.writeByte(type);
+				out.writeInt(len);
+				out.write(b, off, len);
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			synchronized (out) {
+				out.flush();
+			}
+		}
+	}
+
+	/**
+	 * Input of the application, received as frames of length and data. A length
+	 * of {@code -1} marks the end of the input.
+	 */
+	private static class FrameInputStream extends InputStream {
+		private final DataInputStream in;
+		private int remaining;
+		private boolean eof;
+
+		FrameInputStream(DataInputStream in) {
+			this.in = in;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public synchronized int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			while (!eof && remaining == 0) {
+				remaining = in.readInt();
+				if (remaining == -1)
+					eof = true;
+			}
+			if (eof)
+				return -1;
+
+			int read = in.read(b, off, Math.min(len, remaining));
+			if (read == -1) {
+				eof = true;
+				return -1;
+			}
+			remaining -= read;
+			return read;
+		}
+	}
+
+	/*
+	 * Channels.newInputStream/newOutputStream synchronize on the blocking lock of
+	 * a SelectableChannel, so a pending read of stdin would block all output.
+	 */
+	private static InputStream newInputStream(ByteChannel channel) {
+		return new InputStream() {
+			@Override
+			public int read() throws IOException {
+				byte[] b = new byte[1];
+				return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				return channel.read(ByteBuffer.wrap(b, off, len));
+			}
+		};
+	}
+
+	private static OutputStream newOutputStream(ByteChannel channel) {
+		return new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+				while (buffer.hasRemaining())
+					channel.write(buffer);
+			}
+		};
+	}
+
+	private static ScheduledExecutorService newTimer(String name) {
+		return Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, name);
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	private static void close(SocketChannel channel) {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			logger.log(Level.FINE, "Failed to close connection: " + e, e);
+		}
+	}
+
+	private static long getHandshakeTimeout(Properties launcherProperties) {
+		return Long.parseLong(getProperty(launcherProperties, "e3.daemon.handshakeTimeout", "5"));
+	}
+
+	private static ProtocolFamily getUnixProtocolFamily() {
+		// throws IllegalArgumentException before Java 16
+		return StandardProtocolFamily.valueOf("UNIX");
+	}
+
+	private static SocketAddress getUnixAddress(Path path) throws ReflectiveOperationException {
+		return (SocketAddress) Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", Path.class)
+				.invoke(null, path);
+	}
+
+	private static void ignoreSignal(String name) {
+		try {
+			Class<?> signal = Class.forName("sun.misc.Signal");
+			Class<?> handler = Class.forName("sun.misc.SignalHandler");
+			signal.getMethod("handle", signal, handler).invoke(null,
+					signal.getConstructor(String.class).newInstance(name), handler.getField("SIG_IGN").get(null));
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			logger.fine("Cannot ignore signal " + name + ": " + e);
+		}
+	}
+
+	private static Path getDirectory(Properties launcherProperties) throws IOException {
+		Path dir = Paths.get(getProperty(launcherProperties, "e3.daemon.dir",
+				System.getProperty("user.home") + "/.e3/daemon"));
+		Files.createDirectories(dir);
+		return dir;
+	}
+
+	private static Path getInfoFile(Path dir, String id) {
+		return dir.resolve(id + ".daemon");
+	}
+
+	private static Path getLogFile(Path dir, String id) {
+		return dir.resolve(id + ".log");
+	}
+
+	private static Properties readInfo(Path dir, String id) throws IOException {
+		Path file = getInfoFile(dir, id);
+		if (!Files.exists(file))
+			return null;
+
+		Properties info = new Properties();
+		try (InputStream in = Files.newInputStream(file)) {
+			info.load(in);
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+		return info;
+	}
+
+	/**
+	 * @return the id of the daemon for a jar, derived from its location
+	 */
+	private static String getId(Path jar) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA1");
+			return toHex(digest.digest(jar.toAbsolutePath().toString().getBytes(StandardCharsets.UTF_8)));
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder result = new StringBuilder();
+		for (byte b : bytes)
+			result.append(String.format("%02x", b));
+		return result.toString();
+	}
+
+	/**
+	 * Like {@link E3Main1#getLauncherProperty}, which cannot be used by the client
+	 * part.
+	 */
+	private static String getProperty(Properties launcherProperties, String key, String defaultValue) {
+		String value = System.getProperty(key);
+		if (value == null)
+			value = launcherProperties.getProperty(key, defaultValue);
+		return value;
+	}
+}
@@ -1,12 +1,35 @@
 package com.github.pms1.e3.launcher;
 
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.MalformedURLException;
+import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.CodeSigner;
+import java.security.CodeSource;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
 import java.util.regex.Pattern;
+import java.util.stream.Stream;
 
 /**
  * 
@@ -20,6 +43,11 @@ public class E3Main {
 
 	public static void main(String[] args) throws Exception {
 
+		// in daemon mode, run the application in the daemon
+		Integer exitCode = Daemon.runClient(E3Main.class.getClassLoader().getResource("launcher.properties"), args);
+		if (exitCode != null)
+			System.exit(exitCode);
+
 		String classpath = System.getProperty("java.class.path");
 		if (classpath == null)
 			throw new Error("Error: require 'java.class.path' system property to be set");
@@ -44,16 +72,212 @@ public class E3Main {
 		}
 	}
 
+	/**
+	 * A {@link URLClassLoader} that indexes the entries of its jars and
+	 * directories when they are added, so that a lookup does not probe each of
+	 * them. Names that are found neither in the parent nor in the index are
+	 * remembered until the next {@link #addURL(URL)}.
+	 */
 	public static class FrameworkClassloader extends URLClassLoader {
 
+		static {
+			ClassLoader.registerAsParallelCapable();
+		}
+
+		private static final int MAX_MISSES = 10000;
+
+		/**
+		 * A jar or directory on the class path.
+		 */
+		private static class Source implements Closeable {
+			final URL url;
+			final JarFile jar;
+			final Path dir;
+			final Manifest manifest;
+
+			Source(URL url, JarFile jar, Path dir, Manifest manifest) {
+				this.url = url;
+				this.jar = jar;
+				this.dir = dir;
+				this.manifest = manifest;
+			}
+
+			URL getResource(String name) throws MalformedURLException {
+				if (jar != null)
+					return new URL("jar:" + url + "!/" + name);
+				else
+					return dir.resolve(name).toUri().toURL();
+			}
+
+			byte[] read(String name) throws IOException {
+				try (InputStream in = jar != null ? jar.getInputStream(jar.getEntry(name))
+						: Files.newInputStream(dir.resolve(name))) {
+					ByteArrayOutputStream out = new ByteArrayOutputStream();
+					byte[] buffer = new byte[8192];
+					for (int read; (read = in.read(buffer)) != -1;)
+						out.write(buffer, 0, read);
+					return out.toByteArray();
+				}
+			}
+
+			@Override
+			public void close() throws IOException {
+				if (jar != null)
+					jar.close();
+			}
+		}
+
+		private final List<Source> sources = new CopyOnWriteArrayList<>();
+
+		private final Map<String, List<Source>> index = new ConcurrentHashMap<>();
+
+		private volatile Set<String> misses = newMisses();
+
 		public FrameworkClassloader(URL[] urls, ClassLoader parent) {
-			super(urls, parent);
+			super(new URL[0], parent);
+			for (URL url : urls)
+				addURL(url);
+		}
+
+		private static Set<String> newMisses() {
+			return Collections.newSetFromMap(new ConcurrentHashMap<>());
 		}
 
 		// make public to allow reflective access by FrameworkExtensionInstaller
 		@Override
 		public void addURL(URL url) {
+			try {
+				synchronized (sources) {
+					index(url);
+				}
+			} catch (IOException | URISyntaxException e) {
+				throw new UncheckedIOException(new IOException("Failed to index " + url, e));
+			}
 			super.addURL(url);
+			misses = newMisses();
+		}
+
+		private void index(URL url) throws IOException, URISyntaxException {
+			for (Source s : sources)
+				if (s.url.equals(url))
+					return;
+
+			if (!url.getProtocol().equals("file"))
+				throw new IOException("Only file URLs are supported");
+
+			Path path = Paths.get(url.toURI());
+			Source source;
+			if (Files.isDirectory(path)) {
+				source = new Source(url, null, path, null);
+				try (Stream<Path> files = Files.walk(path)) {
+					for (Path p : (Iterable<Path>) files::iterator)
+						if (!p.equals(path))
+							index(path.relativize(p).toString().replace(File.separatorChar, '/')
+									+ (Files.isDirectory(p) ? "/" : ""), source);
+				}
+			} else if (Files.isRegularFile(path)) {
+				JarFile jar = new JarFile(path.toFile());
+				source = new Source(url, jar, null, jar.getManifest());
+				for (Enumeration<JarEntry> e = jar.entries(); e.hasMoreElements();)
+					index(e.nextElement().getName(), source);
+			} else {
+				return;
+			}
+			sources.add(source);
+
+			// like URLClassLoader, follow the Class-Path of jars
+			if (source.manifest != null) {
+				String classPath = source.manifest.getMainAttributes().getValue(Attributes.Name.CLASS_PATH);
+				if (classPath != null)
+					for (String c : classPath.trim().split("\\s+"))
+						if (!c.isEmpty())
+							index(new URL(url, c));
+			}
+		}
+
+		private void index(String name, Source source) {
+			index.merge(name, Collections.singletonList(source), (a, b) -> {
+				List<Source> result = new ArrayList<>(a);
+				result.addAll(b);
+				return result;
+			});
+		}
+
+		@Override
+		protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+			Set<String> misses = this.misses;
+			if (misses.contains(name))
+				throw new ClassNotFoundException(name);
+
+			try {
+				return super.loadClass(name, resolve);
+			} catch (ClassNotFoundException e) {
+				if (misses.size() < MAX_MISSES)
+					misses.add(name);
+				throw e;
+			}
+		}
+
+		// getDefinedPackage replaces getPackage only in Java 9
+		@SuppressWarnings("deprecation")
+		@Override
+		protected Class<?> findClass(String name) throws ClassNotFoundException {
+			String path = name.replace('.', '/') + ".class";
+			List<Source> s = index.get(path);
+			if (s == null)
+				throw new ClassNotFoundException(name);
+			Source source = s.get(0);
+
+			byte[] bytes;
+			try {
+				bytes = source.read(path);
+			} catch (IOException e) {
+				throw new ClassNotFoundException(name, e);
+			}
+
+			int idx = name.lastIndexOf('.');
+			if (idx != -1) {
+				String pkg = name.substring(0, idx);
+				if (getPackage(pkg) == null) {
+					try {
+						if (source.manifest != null)
+							definePackage(pkg, source.manifest, source.url);
+						else
+							definePackage(pkg, null, null, null, null, null, null, null);
+					} catch (IllegalArgumentException e) {
+						// defined concurrently
+					}
+				}
+			}
+
+			return defineClass(name, bytes, 0, bytes.length, new CodeSource(source.url, (CodeSigner[]) null));
+		}
+
+		@Override
+		public URL findResource(String name) {
+			List<Source> s = index.get(name);
+			if (s == null)
+				return null;
+			try {
+				return s.get(0).getResource(name);
+			} catch (MalformedURLException e) {
+				return null;
+			}
+		}
+
+		@Override
+		public Enumeration<URL> findResources(String name) throws IOException {
+			List<URL> result = new ArrayList<>();
+			for (Source s : index.getOrDefault(name, Collections.emptyList()))
+				result.add(s.getResource(name));
+			return Collections.enumeration(result);
+		}
+
+		@Override
+		public void close() throws IOException {
+			for (Source s : sources)
+				s.close();
+			super.close();
 		}
 
 		@Override
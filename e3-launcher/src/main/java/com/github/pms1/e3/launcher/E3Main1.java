@@ -1,25 +1,42 @@
 package com.github.pms1.e3.launcher;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.management.ManagementFactory;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLConnection;
 import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Hashtable;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Properties;
 import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.eclipse.core.runtime.internal.adaptor.EclipseAppLauncher;
 import org.eclipse.osgi.framework.log.FrameworkLog;
@@ -28,16 +45,13 @@ import org.eclipse.osgi.service.environment.EnvironmentInfo;
 import org.eclipse.osgi.service.runnable.ApplicationLauncher;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleException;
 import org.osgi.framework.Constants;
-import org.osgi.framework.FrameworkEvent;
-import org.osgi.framework.FrameworkListener;
 import org.osgi.framework.ServiceReference;
 import org.osgi.framework.ServiceRegistration;
 import org.osgi.framework.launch.Framework;
 import org.osgi.framework.launch.FrameworkFactory;
-import org.osgi.service.log.LogEntry;
-import org.osgi.service.log.LogListener;
-import org.osgi.service.log.LogReaderService;
+import org.osgi.framework.wiring.FrameworkWiring;
 import org.osgi.service.url.AbstractURLStreamHandlerService;
 import org.osgi.service.url.URLConstants;
 import org.osgi.service.url.URLStreamHandlerService;
@@ -57,6 +71,21 @@ public class E3Main1 {
 		URL lookup(String name);
 	}
 
+	static interface BundleLocator {
+		String getLocation(String file) throws IOException;
+	}
+
+	static interface BundleReader {
+		InputStream open(String file) throws IOException;
+	}
+
+	static interface DeferredInstall {
+		/**
+		 * @return {@code false} if there was nothing left to install
+		 */
+		boolean install() throws BundleException, IOException, InterruptedException;
+	}
+
 	public static void main(String[] args1) throws Exception {
 		Properties launcherProperties = new Properties();
 		ClassLoader cl = E3Main1.class.getClassLoader();
@@ -71,10 +100,13 @@ public class E3Main1 {
 				}
 			};
 
+		Timeline.Span configurationSpan = Timeline.begin("launcher", "read configuration");
 		try (InputStream in = loader.apply("launcher.properties").openStream()) {
 			if (in == null)
 				throw new Error("Resource with configuration not found: /launcher.properties");
 			launcherProperties.load(in);
+		} finally {
+			configurationSpan.close();
 		}
 
 		for (Map.Entry<Object, Object> e : launcherProperties.entrySet()) {
@@ -83,6 +115,11 @@ public class E3Main1 {
 				System.setProperty(key.substring(7), (String) e.getValue());
 		}
 
+		Timeline.enableJfr();
+		String traceFile = getLauncherProperty(launcherProperties, "e3.trace.file", null);
+		if (traceFile != null)
+			Timeline.writeOnExit(Paths.get(traceFile));
+
 		FrameworkFactory frameworkFactory = ServiceLoader.load(FrameworkFactory.class, cl).iterator().next();
 
 		Map<String, String> config = new HashMap<String, String>();
@@ -91,7 +128,6 @@ public class E3Main1 {
 			if (key.startsWith("framework."))
 				config.put(key.substring(10), (String) e.getValue());
 		}
-		config.put(Constants.FRAMEWORK_STORAGE_CLEAN, "true");
 		/*
 		 * set by EclipseStarter and needed to make some jvm packages (e.g. org.sax.xml,
 		 * javax.xml.parser) visible to plugins that do not import them (e.g. p2)
@@ -101,32 +137,60 @@ public class E3Main1 {
 		// not sure how to handle this
 		// config.put("eclipse.consoleLog", "true");
 
-		Path tempDir = Files.createTempDirectory("e3-");
-		logger.fine("Using temporary directory " + tempDir);
-		Path storage = tempDir.resolve("configuration");
-		Files.createDirectory(storage);
-		Runtime.getRuntime().addShutdownHook(new Thread() {
-			@Override
-			public void run() {
-				try {
-					logger.fine("Deleting temporary storage " + tempDir);
-					Files.walk(tempDir).sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
-					logger.fine("Deleted temporary storage " + tempDir);
-				} catch (IOException e) {
-					logger.log(Level.WARNING, "Failed to delete temporary directory " + tempDir + ": " + e, e);
-				}
+		Timeline.Span storageSpan = Timeline.begin("launcher", "prepare storage");
+
+		Path embeddedJar = getEmbeddedJar(loader);
+		if (embeddedJar != null && logger.isLoggable(Level.FINE))
+			checkClassDataSharing(embeddedJar);
+
+		Storage storageArea = null;
+		switch (getLauncherProperty(launcherProperties, "e3.storage", "temporary")) {
+		case "temporary":
+			break;
+		case "persistent":
+			if (embeddedJar == null) {
+				logger.warning("Persistent storage requires running from a jar, using temporary storage");
+				break;
 			}
-		});
+			String key = Storage.computeKey(embeddedJar, loader.apply("launcher.properties"));
+			Path cacheDir = Paths.get(getLauncherProperty(launcherProperties, "e3.storage.cache",
+					System.getProperty("user.home") + "/.e3/storage"));
+			int slots = Integer.parseInt(getLauncherProperty(launcherProperties, "e3.storage.slots", "4"));
+			int maxAge = Integer.parseInt(getLauncherProperty(launcherProperties, "e3.storage.maxAge", "30"));
+			storageArea = Storage.acquirePersistent(cacheDir, key, slots, maxAge);
+			if (storageArea == null)
+				logger.fine("All persistent storage slots in use, using temporary storage");
+			break;
+		default:
+			throw new Error("Unhandled value for 'e3.storage': "
+					+ getLauncherProperty(launcherProperties, "e3.storage", null));
+		}
+		if (storageArea == null)
+			storageArea = Storage.createTemporary(
+					Storage.getTemporaryDirectory(getLauncherProperty(launcherProperties, "e3.storage.temp.dir", null)));
+
+		if (!storageArea.isPersistent())
+			config.put(Constants.FRAMEWORK_STORAGE_CLEAN, "true");
+		else if (!storageArea.isInitialized())
+			// discard anything left by an incomplete earlier launch
+			config.put(Constants.FRAMEWORK_STORAGE_CLEAN, Constants.FRAMEWORK_STORAGE_CLEAN_ONFIRSTINIT);
+
+		Path storage = storageArea.getConfiguration();
 		config.put(Constants.FRAMEWORK_STORAGE, storage.toString());
 
 		// copy pass-through configuration files to the configuration area
-		for (String s : launcherProperties.getProperty("configuration.copy").split(",", -1)) {
-			Path dest = storage.resolve(s);
-			Files.createDirectories(dest.getParent());
-			try (InputStream resourceAsStream = loader.apply(".configuration/" + s).openStream()) {
-				Files.copy(resourceAsStream, dest);
+		if (!storageArea.isInitialized())
+			for (String s : launcherProperties.getProperty("configuration.copy").split(",", -1)) {
+				if (s.isEmpty())
+					continue;
+				Path dest = storage.resolve(s);
+				Files.createDirectories(dest.getParent());
+				try (InputStream resourceAsStream = loader.apply(".configuration/" + s).openStream()) {
+					Files.copy(resourceAsStream, dest, StandardCopyOption.REPLACE_EXISTING);
+				}
 			}
-		}
+		storageSpan.close();
+
 		// for (Object k : configIni.keySet())
 		// config.put((String) k, configIni.getProperty((String) k));
 		// config.remove("osgi.framework");
@@ -134,10 +198,53 @@ public class E3Main1 {
 		// TODO: add some config properties
 
 		logger.fine("creating framework with config = " + config);
-		Framework framework = frameworkFactory.newFramework(config);
+		Framework framework;
+		Timeline.Span createSpan = Timeline.begin("launcher", "create framework");
+		try {
+			framework = frameworkFactory.newFramework(config);
+		} finally {
+			createSpan.close();
+		}
 
 		logger.fine("starting framework");
-		framework.start();
+		Timeline.Span startSpan = Timeline.begin("launcher", "start framework");
+		try {
+			framework.start();
+		} finally {
+			startSpan.close();
+		}
+
+		LogBridge logBridge = null;
+		if (Boolean.parseBoolean(getLauncherProperty(launcherProperties, "e3.log", "false"))) {
+			String logFile = getLauncherProperty(launcherProperties, "e3.log.file", null);
+			logBridge = new LogBridge(Integer.parseInt(getLauncherProperty(launcherProperties, "e3.log.capacity", "1024")),
+					LogBridge.Overflow.valueOf(
+							getLauncherProperty(launcherProperties, "e3.log.overflow", "drop").toUpperCase(Locale.ROOT)),
+					Integer.parseInt(getLauncherProperty(launcherProperties, "e3.log.sample", "10")),
+					logFile != null ? Paths.get(logFile) : null);
+			logBridge.attach(framework.getBundleContext());
+		}
+
+		// count from the start, so class definitions during install are seen
+		FrameworkMetrics metrics = null;
+		if (Boolean.parseBoolean(getLauncherProperty(launcherProperties, "e3.metrics", "false"))) {
+			String metricsFile = getLauncherProperty(launcherProperties, "e3.metrics.file", null);
+			metrics = FrameworkMetrics.start(framework.getBundleContext(),
+					metricsFile != null ? Paths.get(metricsFile) : null,
+					Long.parseLong(getLauncherProperty(launcherProperties, "e3.metrics.interval", "10")));
+		}
+
+		String profileFile = getLauncherProperty(launcherProperties, "e3.profile.file", null);
+		ClassLoadingProfiler profiler = null;
+		if (profileFile != null)
+			profiler = ClassLoadingProfiler.start(framework.getBundleContext(), Paths.get(profileFile),
+					Integer.parseInt(getLauncherProperty(launcherProperties, "e3.profile.top", "50")));
+
+		int installParallelism = Integer.parseInt(getLauncherProperty(launcherProperties, "e3.install.parallelism",
+				Integer.toString(Runtime.getRuntime().availableProcessors())));
+
+		EmbeddedResources resources = embeddedJar != null ? new EmbeddedResources(embeddedJar, installParallelism)
+				: null;
 
 		// install protocol handler for "embedded" protocol that is used to load
 		// from the fat jar
@@ -154,6 +261,9 @@ public class E3Main1 {
 							if (p.startsWith("/"))
 								p = p.substring(1);
 
+							if (resources != null)
+								return resources.openConnection(u, p);
+
 							URL u2 = loader.apply(p);
 
 							if (u2 == null)
@@ -165,82 +275,175 @@ public class E3Main1 {
 					}, properties);
 		}
 
-		List<BundleConfiguration> bs = new LinkedList<>();
-
-		for (String bundle : launcherProperties.getProperty("osgi.bundles").split(",", -1)) {
-
-			BundleConfiguration b = new BundleConfiguration();
-			int x = bundle.indexOf("@");
-			if (x == -1)
-				throw new Error();
-
-			// FIXME: use RE
+		List<BundleConfiguration> bs = parseBundles(launcherProperties.getProperty("osgi.bundles"));
 
-			b.file = bundle.substring(0, x);
+		BundleContext context = framework.getBundleContext();
 
-			String rest = bundle.substring(x + 1);
-			if (rest.endsWith(":start")) {
-				b.autostart = true;
-				rest = rest.substring(0, rest.length() - 6);
+		BundleLocator locator = file -> "embedded:" + file;
+		BundleReader reader = file -> resources != null ? resources.getInputStream(file)
+				: loader.apply(file).openStream();
+		if (Boolean.parseBoolean(getLauncherProperty(launcherProperties, "e3.install.reference", "false"))) {
+			if (resources != null) {
+				BundleExtractor extractor = new BundleExtractor(resources,
+						Paths.get(getLauncherProperty(launcherProperties, "e3.install.reference.cache",
+								System.getProperty("user.home") + "/.e3/bundles")),
+						Integer.parseInt(
+								getLauncherProperty(launcherProperties, "e3.install.reference.maxAge", "30")));
+				locator = extractor::getLocation;
+			} else {
+				// not running from a jar, so the bundles are files already
+				locator = file -> {
+					URL u = loader.apply(file);
+					return u.getProtocol().equals("file") ? "reference:" + u : "embedded:" + file;
+				};
 			}
-			b.startLevel = Integer.valueOf(rest);
-
-			bs.add(b);
 		}
 
-		BundleContext context = framework.getBundleContext();
-
-		if (false)
-			context.addFrameworkListener(new FrameworkListener() {
-
-				@Override
-				public void frameworkEvent(FrameworkEvent event) {
-					logger.fine("got Framework event: " + event + " " + event.getType() + " " + event.getBundle() + " "
-							+ event.getSource() + " " + event.getThrowable());
-				}
-			});
-
-		if (false) {
-			LogListener l = new LogListener() {
-
-				@Override
-				public void logged(LogEntry entry) {
-					logger.fine("got LogEntry: " + entry.getLevel() + " " + entry.getMessage() + " " + entry.getTime()
-							+ " " + entry.getBundle() + " " + entry.getServiceReference());
-				}
-			};
-			ServiceReference<LogReaderService> sr = context.getServiceReference(LogReaderService.class);
-			LogReaderService service = context.getService(sr);
-			service.addLogListener(l);
+		List<BundleConfiguration> install = bs;
+		List<BundleConfiguration> deferred = new ArrayList<>();
+		if (Boolean.parseBoolean(getLauncherProperty(launcherProperties, "e3.install.lazy", "false"))) {
+			BundleIndex index = BundleIndex.load(loader);
+			if (index == null) {
+				logger.warning("Lazy install requires a bundle index, installing all bundles");
+			} else {
+				install = selectBundles(index, bs, getApplicationIds(config, args1),
+						getLauncherProperty(launcherProperties, "e3.install.lazy.roots", ""));
+				for (BundleConfiguration b : bs)
+					if (!install.contains(b))
+						deferred.add(b);
+				logger.fine("installing " + install.size() + " bundles, deferring " + deferred.size());
+			}
 		}
 
-		logger.fine("installing bundles");
-		for (BundleConfiguration b : bs) {
-			logger.fine("installing bundle " + b.file);
-			b.bundle = context.installBundle("embedded:" + b.file);
+		logger.fine("installing bundles with parallelism " + installParallelism);
+		Timeline.Span installSpan = Timeline.begin("launcher", "install bundles");
+		try {
+			installBundles(context, install, storageArea, locator, reader, installParallelism);
+		} finally {
+			installSpan.close();
 		}
-
-		logger.fine("starting bundles");
-		for (int sl = 0; sl <= Integer.valueOf(config.get("osgi.bundles.defaultStartLevel")); ++sl) {
-			logger.fine("starting bundles in runlevel " + sl);
-			for (BundleConfiguration b : bs) {
-				if (b.startLevel != sl)
-					continue;
-				if (!b.autostart)
-					continue;
-				logger.fine("starting bundle " + b.bundle.getSymbolicName() + " " + b.bundle.getState());
-				b.bundle.start();
-				logger.fine("started bundle " + b.bundle.getSymbolicName() + " " + b.bundle.getState());
+		storageArea.setInitialized();
+
+		Storage deferredStorage = storageArea;
+		BundleLocator deferredLocator = locator;
+		BundleReader deferredReader = reader;
+		DeferredInstall deferredInstall = () -> {
+			if (deferred.isEmpty())
+				return false;
+			logger.fine("installing " + deferred.size() + " deferred bundles");
+			Timeline.Span deferredSpan = Timeline.begin("launcher", "install deferred bundles");
+			try {
+				installBundles(context, deferred, deferredStorage, deferredLocator, deferredReader,
+						installParallelism);
+			} finally {
+				deferredSpan.close();
 			}
+			deferred.clear();
+			return true;
+		};
+
+		int startParallelism = Integer
+				.parseInt(getLauncherProperty(launcherProperties, "e3.start.parallelism", "1"));
+		logger.fine("starting bundles with parallelism " + startParallelism);
+		// do not record the start in a persistent storage area, so the start order
+		// stays under control of this loop on the next launch
+		Timeline.Span startBundlesSpan = Timeline.begin("launcher", "start bundles");
+		try {
+			startBundles(framework.adapt(FrameworkWiring.class), bs,
+					Integer.valueOf(config.get("osgi.bundles.defaultStartLevel")),
+					storageArea.isPersistent() ? Bundle.START_TRANSIENT : 0, startParallelism, deferredInstall);
+		} finally {
+			startBundlesSpan.close();
+		}
+		// the bundles have been copied to the storage area or extracted
+		if (resources != null)
+			resources.close();
+
+		if (Boolean.parseBoolean(getLauncherProperty(launcherProperties, "e3.training", "false"))) {
+			// a training run for a class data sharing archive only covers the startup
+			logger.fine("Training run, not starting the application");
+			if (metrics != null)
+				metrics.close();
+			if (profiler != null)
+				profiler.close();
+			framework.stop();
+			framework.waitForStop(0);
+			if (logBridge != null)
+				logBridge.close();
+			System.exit(0);
 		}
 
 		if (logger.isLoggable(Level.FINEST))
 			for (Bundle b : context.getBundles())
 				logger.fine("bundle state: " + b.getSymbolicName() + " " + b.getState());
 
+		if (profiler != null)
+			profiler.applicationStarted();
+
 		int exitCode;
 		try {
+			if (Boolean.getBoolean("e3.daemon.serve")) {
+				Daemon.serve(embeddedJar, loader.apply("launcher.properties"), launcherProperties,
+						args -> runApplication(context, args));
+				exitCode = 0;
+			} else {
+				exitCode = runApplication(context, args1);
+			}
+		} finally {
+			if (metrics != null)
+				metrics.close();
+			if (profiler != null)
+				profiler.close();
+			Timeline.Span stopSpan = Timeline.begin("launcher", "stop framework");
+			try {
+				logger.fine("Initiating framework stop");
+				framework.stop();
+				logger.fine("Waiting for framework stop");
+				framework.waitForStop(0);
+			} finally {
+				stopSpan.close();
+			}
+			if (logBridge != null)
+				logBridge.close();
+		}
+		logger.fine("Exiting");
+		System.exit(exitCode);
+	}
+
+	private static final Pattern BUNDLE = Pattern.compile("(.+)@(\\d+)(:start)?");
+
+	/**
+	 * Parse the {@code osgi.bundles} property, a comma separated list of
+	 * {@code <file>@<startLevel>[:start]}.
+	 */
+	static List<BundleConfiguration> parseBundles(String spec) {
+		List<BundleConfiguration> bs = new ArrayList<>();
+
+		for (String bundle : spec.split(",", -1)) {
+			Matcher m = BUNDLE.matcher(bundle);
+			if (!m.matches())
+				throw new Error("Invalid entry in 'osgi.bundles', expected <file>@<startLevel>[:start]: '" + bundle
+						+ "'");
 
+			BundleConfiguration b = new BundleConfiguration();
+			b.file = m.group(1);
+			b.startLevel = Integer.parseInt(m.group(2));
+			b.autostart = m.group(3) != null;
+
+			bs.add(b);
+		}
+
+		return bs;
+	}
+
+	/**
+	 * Run the default application with a new {@link EclipseAppLauncher}.
+	 *
+	 * @return the exit code
+	 */
+	static int runApplication(BundleContext context, String[] args) {
+		int exitCode;
+		try {
 			boolean failOnNoDefault = true;
 			boolean relaunch = false;
 
@@ -254,12 +457,18 @@ public class E3Main1 {
 			ServiceRegistration<?> appLauncherRegistration = context
 					.registerService(ApplicationLauncher.class.getName(), appLauncher, null);
 
-			logger.fine("Starting EclipseAppLauncher with arguments " + Arrays.toString(args1));
-			Object result = appLauncher.start(args1);
+			logger.fine("Starting EclipseAppLauncher with arguments " + Arrays.toString(args));
+			Object result;
+			Timeline.Span span = Timeline.begin("launcher", "application");
+			try {
+				result = appLauncher.start(args);
+			} finally {
+				span.close();
+				// a daemon runs the next application with a new launcher
+				appLauncherRegistration.unregister();
+			}
 			logger.fine("EclipseAppLauncher exited normally");
 
-			appLauncherRegistration.unregister();
-
 			if (result instanceof Integer)
 				exitCode = (Integer) result;
 			else
@@ -268,13 +477,367 @@ public class E3Main1 {
 			logger.log(Level.FINE, "EclipseAppLauncher terminated with exception: " + t, t);
 			t.printStackTrace();
 			exitCode = 1;
+		}
+		return exitCode;
+	}
+
+	/**
+	 * A nested jar read ahead of its install, {@code content} is {@code null} if
+	 * the framework reads it from the location itself.
+	 */
+	private static class FetchedBundle {
+		final String location;
+		final byte[] content;
+
+		FetchedBundle(String location, byte[] content) {
+			this.location = location;
+			this.content = content;
+		}
+	}
+
+	/**
+	 * Install the bundles in list order, so the bundle ids, which the resolver
+	 * uses to break ties, are the same on every launch. With a
+	 * {@code parallelism} above 1, up to that many threads compute the locations
+	 * and read the nested jars ahead of the install, so that this I/O overlaps
+	 * with the framework's bookkeeping. At most {@code 2 * parallelism} bundles
+	 * are read ahead. {@code reference:} locations are not read ahead, as the
+	 * framework does not copy them.
+	 */
+	static void installBundles(BundleContext context, List<BundleConfiguration> bs, Storage storageArea,
+			BundleLocator locator, BundleReader reader, int parallelism)
+			throws BundleException, IOException, InterruptedException {
+		if (parallelism <= 1) {
+			for (BundleConfiguration b : bs)
+				b.bundle = installBundle(context, b, storageArea, new FetchedBundle(locator.getLocation(b.file), null));
+			return;
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(parallelism, newThreadFactory("e3-install"));
+		try {
+			int window = 2 * parallelism;
+			List<Future<FetchedBundle>> futures = new ArrayList<>(bs.size());
+			for (int i = 0; i != Math.min(window, bs.size()); ++i) {
+				BundleConfiguration b = bs.get(i);
+				futures.add(executor.submit(() -> fetchBundle(context, b, storageArea, locator, reader)));
+			}
+
+			List<Throwable> failures = new ArrayList<>();
+			for (int i = 0; i != bs.size(); ++i) {
+				if (i + window < bs.size()) {
+					BundleConfiguration next = bs.get(i + window);
+					futures.add(executor.submit(() -> fetchBundle(context, next, storageArea, locator, reader)));
+				}
+
+				BundleConfiguration b = bs.get(i);
+				try {
+					FetchedBundle fetched = futures.get(i).get();
+					futures.set(i, null);
+					b.bundle = installBundle(context, b, storageArea, fetched);
+				} catch (ExecutionException e) {
+					logger.log(Level.FINE, "failed to install bundle " + b.file + ": " + e.getCause(), e.getCause());
+					failures.add(e.getCause());
+				} catch (BundleException | RuntimeException e) {
+					logger.log(Level.FINE, "failed to install bundle " + b.file + ": " + e, e);
+					failures.add(e);
+				}
+			}
+			throwFailures(failures, "Failed to install " + failures.size() + " bundles");
 		} finally {
-			logger.fine("Initiating framework stop");
-			framework.stop();
-			logger.fine("Waiting for framework stop");
-			framework.waitForStop(0);
+			executor.shutdownNow();
 		}
-		logger.fine("Exiting");
-		System.exit(exitCode);
+	}
+
+	private static FetchedBundle fetchBundle(BundleContext context, BundleConfiguration b, Storage storageArea,
+			BundleLocator locator, BundleReader reader) throws IOException {
+		String location = locator.getLocation(b.file);
+		if (reader == null || location.startsWith("reference:")
+				|| storageArea.isInitialized() && context.getBundle(location) != null)
+			return new FetchedBundle(location, null);
+
+		Timeline.Span span = Timeline.begin("fetch", b.file);
+		try (InputStream in = reader.open(b.file)) {
+			ByteArrayOutputStream content = new ByteArrayOutputStream();
+			byte[] buffer = new byte[65536];
+			for (int read; (read = in.read(buffer)) != -1;)
+				content.write(buffer, 0, read);
+			return new FetchedBundle(location, content.toByteArray());
+		} finally {
+			span.close();
+		}
+	}
+
+	/**
+	 * Start the autostart bundles one start level after the other. The bundles of
+	 * a start level are resolved together first, and then up to
+	 * {@code parallelism} of them are started concurrently. All bundles of a start
+	 * level have been started before the next start level is entered, and a start
+	 * level with failures ends the startup after all its bundles have been tried.
+	 * If a start level does not resolve, the deferred bundles are installed
+	 * before trying again.
+	 */
+	static void startBundles(FrameworkWiring wiring, List<BundleConfiguration> bs, int maxStartLevel, int options,
+			int parallelism, DeferredInstall deferredInstall)
+			throws BundleException, IOException, InterruptedException {
+		TreeMap<Integer, List<BundleConfiguration>> levels = new TreeMap<>();
+		for (BundleConfiguration b : bs)
+			if (b.autostart)
+				levels.computeIfAbsent(b.startLevel, sl -> new ArrayList<>()).add(b);
+
+		ExecutorService executor = parallelism > 1
+				? Executors.newFixedThreadPool(parallelism, newVirtualThreadFactory("e3-start"))
+				: null;
+		try {
+			for (Map.Entry<Integer, List<BundleConfiguration>> level : levels.subMap(0, true, maxStartLevel, true)
+					.entrySet()) {
+				logger.fine("starting bundles in runlevel " + level.getKey());
+
+				// the resolver works on all bundles of a start level at once and has no
+				// per-bundle cost to measure, so there is one resolve span per start level.
+				// A failure to resolve is reported when starting the bundle.
+				Timeline.Span span = Timeline.begin("resolve", "start level " + level.getKey());
+				try {
+					List<Bundle> bundles = new ArrayList<>(level.getValue().size());
+					for (BundleConfiguration b : level.getValue())
+						bundles.add(b.bundle);
+					if (!wiring.resolveBundles(bundles) && deferredInstall.install())
+						wiring.resolveBundles(bundles);
+				} finally {
+					span.close();
+				}
+
+				List<Throwable> failures = new ArrayList<>();
+				if (executor == null) {
+					for (BundleConfiguration b : level.getValue()) {
+						try {
+							startBundle(b, options);
+						} catch (BundleException | RuntimeException e) {
+							failures.add(startFailed(b, e));
+						}
+					}
+				} else {
+					List<Future<?>> futures = new ArrayList<>(level.getValue().size());
+					for (BundleConfiguration b : level.getValue())
+						futures.add(executor.submit(() -> {
+							startBundle(b, options);
+							return null;
+						}));
+					for (int i = 0; i != futures.size(); ++i) {
+						try {
+							futures.get(i).get();
+						} catch (ExecutionException e) {
+							failures.add(startFailed(level.getValue().get(i), e.getCause()));
+						}
+					}
+				}
+
+				throwFailures(failures,
+						"Failed to start " + failures.size() + " bundles in start level " + level.getKey());
+			}
+		} finally {
+			if (executor != null)
+				executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Select the bundles to install when installing lazily: the autostart
+	 * bundles, the bundles that must always be installed, the bundles declaring
+	 * the application or product in their {@code plugin.xml} and those in
+	 * {@code roots}, plus everything they need
+	 * according to the index.
+	 */
+	static List<BundleConfiguration> selectBundles(BundleIndex index, List<BundleConfiguration> bs,
+			List<String> applicationIds, String roots) {
+		Set<String> rootNames = new HashSet<>();
+		for (String s : roots.split(","))
+			if (!s.trim().isEmpty())
+				rootNames.add(s.trim());
+
+		List<String> files = new ArrayList<>(bs.size());
+		List<String> rootFiles = new ArrayList<>();
+		for (BundleConfiguration b : bs) {
+			files.add(b.file);
+
+			String symbolicName = index.getSymbolicName(b.file);
+			boolean root = b.autostart || index.isRequired(b.file) || rootNames.contains(symbolicName);
+			for (String id : index.getDeclaredIds(b.file))
+				if (applicationIds.contains(id))
+					root = true;
+			if (root)
+				rootFiles.add(b.file);
+		}
+
+		Set<String> closure = new HashSet<>(index.getClosure(files, rootFiles));
+		List<BundleConfiguration> result = new ArrayList<>(closure.size());
+		for (BundleConfiguration b : bs)
+			if (closure.contains(b.file))
+				result.add(b);
+		return result;
+	}
+
+	/**
+	 * @return the ids of the application and product to run, as far as they are
+	 *         given on the command line or in the configuration
+	 */
+	private static List<String> getApplicationIds(Map<String, String> config, String[] args) {
+		List<String> result = new ArrayList<>();
+		for (String key : new String[] { "eclipse.application", "eclipse.product" }) {
+			String value = System.getProperty(key, config.get(key));
+			if (value != null)
+				result.add(value);
+		}
+		for (int i = 0; i < args.length - 1; ++i)
+			if (args[i].equalsIgnoreCase("-application") || args[i].equalsIgnoreCase("-product"))
+				result.add(args[i + 1]);
+		return result;
+	}
+
+	private static void startBundle(BundleConfiguration b, int options) throws BundleException {
+		logger.fine("starting bundle " + b.bundle.getSymbolicName() + " " + b.bundle.getState());
+		Timeline.Span span = Timeline.begin("activate", b.bundle.getSymbolicName());
+		try {
+			b.bundle.start(options);
+		} finally {
+			span.close();
+		}
+		logger.fine("started bundle " + b.bundle.getSymbolicName() + " " + b.bundle.getState());
+	}
+
+	private static Throwable startFailed(BundleConfiguration b, Throwable t) {
+		logger.log(Level.WARNING, "Failed to start bundle " + b.bundle.getSymbolicName() + ": " + t, t);
+		return t;
+	}
+
+	private static Bundle installBundle(BundleContext context, BundleConfiguration b, Storage storageArea,
+			FetchedBundle fetched) throws BundleException {
+		String location = fetched.location;
+		// a persistent storage area already contains the bundles
+		if (storageArea.isInitialized()) {
+			Bundle bundle = context.getBundle(location);
+			if (bundle != null)
+				return bundle;
+		}
+		logger.fine("installing bundle " + b.file + " from " + location);
+		Timeline.Span span = Timeline.begin("install", b.file);
+		try {
+			if (fetched.content != null)
+				return context.installBundle(location, new ByteArrayInputStream(fetched.content));
+			return context.installBundle(location);
+		} finally {
+			span.close();
+		}
+	}
+
+	/**
+	 * Rethrow a single failure as is, several as one {@link BundleException}
+	 * with the others attached as suppressed exceptions.
+	 */
+	static void throwFailures(List<Throwable> failures, String message) throws BundleException {
+		if (failures.isEmpty())
+			return;
+
+		Throwable first = failures.get(0);
+		if (failures.size() == 1) {
+			if (first instanceof BundleException)
+				throw (BundleException) first;
+			if (first instanceof RuntimeException)
+				throw (RuntimeException) first;
+			if (first instanceof Error)
+				throw (Error) first;
+		}
+
+		BundleException e = new BundleException(message, first);
+		for (Throwable t : failures.subList(1, failures.size()))
+			e.addSuppressed(t);
+		throw e;
+	}
+
+	static ThreadFactory newThreadFactory(String name) {
+		AtomicInteger count = new AtomicInteger();
+		return r -> {
+			Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		};
+	}
+
+	/**
+	 * A factory for virtual threads if the JVM has them, otherwise for platform
+	 * daemon threads.
+	 */
+	static ThreadFactory newVirtualThreadFactory(String name) {
+		try {
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + "-", 1L);
+			return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+		} catch (ReflectiveOperationException e) {
+			return newThreadFactory(name);
+		}
+	}
+
+	/**
+	 * @return the jar the launcher is running from, or {@code null} if it is not
+	 *         running from a jar
+	 */
+	static Path getEmbeddedJar(Function<String, URL> loader) throws IOException {
+		return Storage.getJar(loader.apply("launcher.properties"));
+	}
+
+	/**
+	 * A class data sharing archive or AOT cache created by the
+	 * {@code create-cds-archive} goal is only used if the JVM is started with it,
+	 * and the JVM itself ignores it if it does not match the jar. So only report
+	 * whether an archive next to the jar is in use.
+	 */
+	static void checkClassDataSharing(Path embeddedJar) {
+		String base = embeddedJar.getFileName().toString().replaceFirst("[.]jar$", "");
+		for (String archive : new String[] { base + "-cds.jsa", base + "-aot.aot" }) {
+			Path p = embeddedJar.resolveSibling(archive);
+			if (!Files.exists(p))
+				continue;
+
+			boolean used = false;
+			for (String arg : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+				String value;
+				if (arg.startsWith("-XX:SharedArchiveFile="))
+					value = arg.substring("-XX:SharedArchiveFile=".length());
+				else if (arg.startsWith("-XX:AOTCache="))
+					value = arg.substring("-XX:AOTCache=".length());
+				else
+					continue;
+				// a dynamic archive can be given together with its base archive
+				for (String file : value.split(File.pathSeparator))
+					if (isSameFile(p, file))
+						used = true;
+			}
+
+			if (used)
+				logger.fine("JVM started with the class data sharing archive " + p);
+			else if (archive.endsWith(".jsa"))
+				logger.fine("Class data sharing archive available, use with -XX:SharedArchiveFile=" + p);
+			else
+				logger.fine("AOT cache available, use with -XX:AOTCache=" + p);
+		}
+	}
+
+	private static boolean isSameFile(Path p, String file) {
+		try {
+			return Files.isSameFile(p, Paths.get(file));
+		} catch (IOException | InvalidPathException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Options of the launcher itself are read from {@code launcher.properties}
+	 * and can be overridden by system properties of the same name.
+	 */
+	static String getLauncherProperty(Properties launcherProperties, String key, String defaultValue) {
+		String value = System.getProperty(key);
+		if (value == null)
+			value = launcherProperties.getProperty(key, defaultValue);
+		return value;
 	}
 }
@@ -0,0 +1,161 @@
+package com.github.pms1.e3.launcher;
+
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.file.Path;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Access to the entries of the embedded jar for the {@code embedded:} protocol.
+ *
+ * The central directory is indexed once, so a lookup does not search the class
+ * path like {@link ClassLoader#getResource} does. Reading an entry borrows a
+ * {@link ZipFile} from a pool, so that concurrent installs do not serialize on
+ * a single handle. At most {@code handles} idle handles are kept, and
+ * {@link #close()} closes them once the bundles are installed. Later reads open
+ * a handle for the duration of the read only.
+ *
+ * @author pms1
+ *
+ */
+class EmbeddedResources implements AutoCloseable {
+
+	static Logger logger = Logger.getLogger(EmbeddedResources.class.getName());
+
+	private final Path jar;
+	private final Map<String, ZipEntry> entries;
+	private final BlockingQueue<ZipFile> idle;
+	private volatile boolean closed;
+
+	EmbeddedResources(Path jar, int handles) throws IOException {
+		this.jar = jar;
+		this.idle = new ArrayBlockingQueue<>(Math.max(1, handles));
+
+		ZipFile zip = new ZipFile(jar.toFile());
+		Map<String, ZipEntry> entries = new HashMap<>(zip.size() * 4 / 3 + 1);
+		for (Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements();) {
+			ZipEntry entry = e.nextElement();
+			entries.put(entry.getName(), entry);
+		}
+		this.entries = entries;
+		idle.add(zip);
+		logger.fine("Indexed " + entries.size() + " entries of " + jar);
+	}
+
+	Path getJar() {
+		return jar;
+	}
+
+	/**
+	 * @return the entry {@code name}, or {@code null} if there is none
+	 */
+	ZipEntry getEntry(String name) {
+		return entries.get(name);
+	}
+
+	InputStream getInputStream(String name) throws IOException {
+		ZipEntry entry = entries.get(name);
+		if (entry == null)
+			throw new FileNotFoundException("Not found: " + name + " in " + jar);
+
+		ZipFile zip = idle.poll();
+		if (zip == null)
+			zip = new ZipFile(jar.toFile());
+
+		ZipFile borrowed = zip;
+		InputStream in;
+		try {
+			in = borrowed.getInputStream(entry);
+		} catch (IOException | RuntimeException e) {
+			release(borrowed);
+			throw e;
+		}
+
+		return new FilterInputStream(in) {
+			private boolean released;
+
+			@Override
+			public void close() throws IOException {
+				try {
+					super.close();
+				} finally {
+					if (!released) {
+						released = true;
+						release(borrowed);
+					}
+				}
+			}
+		};
+	}
+
+	private void release(ZipFile zip) throws IOException {
+		if (closed || !idle.offer(zip))
+			zip.close();
+		// close() may have run concurrently
+		else if (closed && idle.remove(zip))
+			zip.close();
+	}
+
+	URLConnection openConnection(URL url, String name) {
+		return new URLConnection(url) {
+			private ZipEntry entry;
+
+			@Override
+			public void connect() throws IOException {
+				if (connected)
+					return;
+				entry = getEntry(name);
+				if (entry == null)
+					throw new FileNotFoundException("Not found: " + url);
+				connected = true;
+			}
+
+			@Override
+			public InputStream getInputStream() throws IOException {
+				connect();
+				return EmbeddedResources.this.getInputStream(name);
+			}
+
+			@Override
+			public long getContentLengthLong() {
+				try {
+					connect();
+				} catch (IOException e) {
+					return -1;
+				}
+				return entry.getSize();
+			}
+
+			@Override
+			public long getLastModified() {
+				try {
+					connect();
+				} catch (IOException e) {
+					return 0;
+				}
+				return entry.getTime();
+			}
+		};
+	}
+
+	/**
+	 * Close the idle handles. Handles in use are closed when they are returned.
+	 */
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		for (ZipFile zip; (zip = idle.poll()) != null;)
+			zip.close();
+	}
+}
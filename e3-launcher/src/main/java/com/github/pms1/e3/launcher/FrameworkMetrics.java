@@ -0,0 +1,327 @@
+package com.github.pms1.e3.launcher;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.framework.hooks.weaving.WeavingHook;
+import org.osgi.framework.hooks.weaving.WovenClass;
+
+/**
+ * Counts events of the embedded framework and publishes them on the platform
+ * MBean server, see {@link FrameworkMetricsMXBean}.
+ *
+ * The rates are computed by a sampler that runs every {@code interval}
+ * seconds. If a file is given, the sampler also writes all metrics to it as
+ * JSON, and they are written a last time on {@link #close()}. With an
+ * {@code interval} of 0 or less, they are only sampled on {@link #close()}.
+ *
+ * @author pms1
+ *
+ */
+class FrameworkMetrics implements FrameworkMetricsMXBean, AutoCloseable {
+
+	static Logger logger = Logger.getLogger(FrameworkMetrics.class.getName());
+
+	static final String OBJECT_NAME = "com.github.pms1.e3:type=Framework";
+
+	private final BundleContext context;
+	private final Path file;
+
+	private final Map<String, LongAdder> classes = new ConcurrentHashMap<>();
+	private final LongAdder classesLoaded = new LongAdder();
+	private final LongAdder registrations = new LongAdder();
+	private final LongAdder unregistrations = new LongAdder();
+	private final Map<String, LongAdder> frameworkEvents = new ConcurrentHashMap<>();
+
+	private final FrameworkListener frameworkListener = this::frameworkEvent;
+	private final ServiceListener serviceListener = this::serviceChanged;
+	private final ServiceRegistration<WeavingHook> weavingHook;
+	private final ScheduledExecutorService sampler;
+	private ObjectName name;
+
+	private long lastSample = System.nanoTime();
+	private long lastRegistrations;
+	private long lastUnregistrations;
+	private volatile double registrationRate;
+	private volatile double unregistrationRate;
+
+	private FrameworkMetrics(BundleContext context, Path file, long interval) {
+		this.context = context;
+		this.file = file;
+
+		context.addFrameworkListener(frameworkListener);
+		context.addServiceListener(serviceListener);
+		// a hook that does not weave, to see each class a bundle loader defines
+		weavingHook = context.registerService(WeavingHook.class, this::weave, null);
+
+		sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "e3-metrics");
+			t.setDaemon(true);
+			return t;
+		});
+		if (interval > 0)
+			sampler.scheduleAtFixedRate(this::sample, interval, interval, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Start counting and register the MBean.
+	 *
+	 * @param file
+	 *            the file to write the metrics to, or {@code null}
+	 * @param interval
+	 *            the sampling interval in seconds, 0 or less to sample only
+	 *            on {@link #close()}
+	 */
+	static FrameworkMetrics start(BundleContext context, Path file, long interval) {
+		FrameworkMetrics metrics = new FrameworkMetrics(context, file, interval);
+
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			server.registerMBean(metrics, name);
+			metrics.name = name;
+		} catch (JMException e) {
+			logger.log(Level.WARNING, "Failed to register " + OBJECT_NAME + ": " + e, e);
+		}
+
+		return metrics;
+	}
+
+	private void frameworkEvent(FrameworkEvent event) {
+		frameworkEvents.computeIfAbsent(getFrameworkEventType(event.getType()), k -> new LongAdder()).increment();
+	}
+
+	private void serviceChanged(ServiceEvent event) {
+		switch (event.getType()) {
+		case ServiceEvent.REGISTERED:
+			registrations.increment();
+			break;
+		case ServiceEvent.UNREGISTERING:
+			unregistrations.increment();
+			break;
+		}
+	}
+
+	private void weave(WovenClass wovenClass) {
+		classesLoaded.increment();
+		classes.computeIfAbsent(String.valueOf(wovenClass.getBundleWiring().getBundle().getSymbolicName()),
+				k -> new LongAdder()).increment();
+	}
+
+	private synchronized void sample() {
+		long now = System.nanoTime();
+		long registrations = this.registrations.sum();
+		long unregistrations = this.unregistrations.sum();
+
+		double seconds = (now - lastSample) / 1e9;
+		if (seconds > 0) {
+			registrationRate = (registrations - lastRegistrations) / seconds;
+			unregistrationRate = (unregistrations - lastUnregistrations) / seconds;
+		}
+		lastSample = now;
+		lastRegistrations = registrations;
+		lastUnregistrations = unregistrations;
+
+		if (file != null) {
+			try {
+				write(file);
+			} catch (IOException | RuntimeException e) {
+				logger.log(Level.WARNING, "Failed to write metrics " + file + ": " + e, e);
+			}
+		}
+	}
+
+	static String getFrameworkEventType(int type) {
+		switch (type) {
+		case FrameworkEvent.STARTED:
+			return "STARTED";
+		case FrameworkEvent.ERROR:
+			return "ERROR";
+		case FrameworkEvent.PACKAGES_REFRESHED:
+			return "PACKAGES_REFRESHED";
+		case FrameworkEvent.STARTLEVEL_CHANGED:
+			return "STARTLEVEL_CHANGED";
+		case FrameworkEvent.WARNING:
+			return "WARNING";
+		case FrameworkEvent.INFO:
+			return "INFO";
+		case FrameworkEvent.STOPPED:
+			return "STOPPED";
+		case FrameworkEvent.STOPPED_UPDATE:
+			return "STOPPED_UPDATE";
+		case FrameworkEvent.STOPPED_BOOTCLASSPATH_MODIFIED:
+			return "STOPPED_BOOTCLASSPATH_MODIFIED";
+		case FrameworkEvent.WAIT_TIMEDOUT:
+			return "WAIT_TIMEDOUT";
+		default:
+			return Integer.toString(type);
+		}
+	}
+
+	private static String getBundleState(int state) {
+		switch (state) {
+		case Bundle.UNINSTALLED:
+			return "UNINSTALLED";
+		case Bundle.INSTALLED:
+			return "INSTALLED";
+		case Bundle.RESOLVED:
+			return "RESOLVED";
+		case Bundle.STARTING:
+			return "STARTING";
+		case Bundle.STOPPING:
+			return "STOPPING";
+		case Bundle.ACTIVE:
+			return "ACTIVE";
+		default:
+			return Integer.toString(state);
+		}
+	}
+
+	private static Map<String, Long> snapshot(Map<String, LongAdder> counters) {
+		Map<String, Long> result = new TreeMap<>();
+		counters.forEach((k, v) -> result.put(k, v.sum()));
+		return result;
+	}
+
+	@Override
+	public Map<String, Integer> getBundlesByState() {
+		Map<String, Integer> result = new TreeMap<>();
+		for (Bundle b : context.getBundles())
+			result.merge(getBundleState(b.getState()), 1, Integer::sum);
+		return result;
+	}
+
+	@Override
+	public Map<String, Long> getClassesByBundle() {
+		return snapshot(classes);
+	}
+
+	@Override
+	public long getClassesLoaded() {
+		return classesLoaded.sum();
+	}
+
+	@Override
+	public int getServices() {
+		try {
+			ServiceReference<?>[] references = context.getAllServiceReferences(null, null);
+			return references != null ? references.length : 0;
+		} catch (InvalidSyntaxException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Override
+	public long getServiceRegistrations() {
+		return registrations.sum();
+	}
+
+	@Override
+	public long getServiceUnregistrations() {
+		return unregistrations.sum();
+	}
+
+	@Override
+	public double getServiceRegistrationRate() {
+		return registrationRate;
+	}
+
+	@Override
+	public double getServiceUnregistrationRate() {
+		return unregistrationRate;
+	}
+
+	@Override
+	public Map<String, Long> getFrameworkEvents() {
+		return snapshot(frameworkEvents);
+	}
+
+	@Override
+	public Map<String, Long> getStartupPhases() {
+		Map<String, Long> result = new TreeMap<>();
+		for (Timeline.Span s : Timeline.getSpans())
+			if (s.category.equals("launcher"))
+				result.merge(s.name, s.getDuration(TimeUnit.MILLISECONDS), Long::sum);
+		return result;
+	}
+
+	synchronized void write(Path file) throws IOException {
+		Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+		try (Writer w = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+			w.write("{\n");
+			w.write("\"bundlesByState\":" + toJson(getBundlesByState()) + ",\n");
+			w.write("\"classesByBundle\":" + toJson(getClassesByBundle()) + ",\n");
+			w.write("\"classesLoaded\":" + getClassesLoaded() + ",\n");
+			w.write("\"services\":" + getServices() + ",\n");
+			w.write("\"serviceRegistrations\":" + getServiceRegistrations() + ",\n");
+			w.write("\"serviceUnregistrations\":" + getServiceUnregistrations() + ",\n");
+			w.write("\"serviceRegistrationRate\":" + getServiceRegistrationRate() + ",\n");
+			w.write("\"serviceUnregistrationRate\":" + getServiceUnregistrationRate() + ",\n");
+			w.write("\"frameworkEvents\":" + toJson(getFrameworkEvents()) + ",\n");
+			w.write("\"startupPhases\":" + toJson(getStartupPhases()) + "\n");
+			w.write("}\n");
+		}
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static String toJson(Map<String, ? extends Number> map) {
+		StringBuilder result = new StringBuilder("{");
+		map.forEach((k, v) -> {
+			if (result.length() > 1)
+				result.append(',');
+			result.append(Timeline.quote(k)).append(':').append(v);
+		});
+		return result.append('}').toString();
+	}
+
+	/**
+	 * Stop counting and unregister the MBean. Must be called while the framework
+	 * is still active.
+	 */
+	@Override
+	public void close() {
+		sampler.shutdownNow();
+		if (name != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+			} catch (JMException e) {
+				logger.log(Level.FINE, "Failed to unregister " + name + ": " + e, e);
+			}
+		}
+		context.removeFrameworkListener(frameworkListener);
+		context.removeServiceListener(serviceListener);
+		try {
+			weavingHook.unregister();
+		} catch (IllegalStateException e) {
+			// already unregistered
+		}
+		sample();
+	}
+}
@@ -0,0 +1,54 @@
+package com.github.pms1.e3.launcher;
+
+import java.util.Map;
+
+/**
+ * Metrics of the embedded framework, registered as
+ * {@value FrameworkMetrics#OBJECT_NAME}.
+ *
+ * @author pms1
+ *
+ */
+public interface FrameworkMetricsMXBean {
+
+	/**
+	 * @return the number of bundles by state, e.g. {@code ACTIVE}
+	 */
+	Map<String, Integer> getBundlesByState();
+
+	/**
+	 * @return the number of classes loaded by the class loader of each bundle
+	 *         since the framework was started, by symbolic name
+	 */
+	Map<String, Long> getClassesByBundle();
+
+	long getClassesLoaded();
+
+	int getServices();
+
+	long getServiceRegistrations();
+
+	long getServiceUnregistrations();
+
+	/**
+	 * @return the service registrations per second during the last sampling
+	 *         interval
+	 */
+	double getServiceRegistrationRate();
+
+	/**
+	 * @return the service unregistrations per second during the last sampling
+	 *         interval
+	 */
+	double getServiceUnregistrationRate();
+
+	/**
+	 * @return the number of framework events by type, e.g. {@code ERROR}
+	 */
+	Map<String, Long> getFrameworkEvents();
+
+	/**
+	 * @return the duration of the completed launcher phases in milliseconds
+	 */
+	Map<String, Long> getStartupPhases();
+}
@@ -0,0 +1,353 @@
+package com.github.pms1.e3.launcher;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import org.eclipse.equinox.log.SynchronousLogListener;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.log.LogEntry;
+import org.osgi.service.log.LogReaderService;
+import org.osgi.service.log.LogService;
+
+/**
+ * Forwards the entries of the {@link LogReaderService} and framework events to
+ * {@code java.util.logging} or to a file.
+ *
+ * The listeners only put a record into a bounded, lock-free ring buffer, so a
+ * framework or bundle thread never waits for the log output. A background
+ * thread drains the buffer in batches. If the buffer is full, records are
+ * dropped. With the {@link Overflow#SAMPLE} policy, records below
+ * {@link Level#WARNING} are already sampled once the buffer is three quarters
+ * full, so there is room left for warnings and errors. Dropped and sampled out
+ * records are counted and reported in the log.
+ *
+ * @author pms1
+ *
+ */
+class LogBridge implements SynchronousLogListener, FrameworkListener, AutoCloseable {
+
+	static Logger logger = Logger.getLogger(LogBridge.class.getName());
+
+	private static final int BATCH = 256;
+
+	enum Overflow {
+		DROP, SAMPLE
+	}
+
+	private static class Record {
+		final long time;
+		final Level level;
+		final String name;
+		final String message;
+		final Throwable throwable;
+
+		Record(long time, Level level, String name, String message, Throwable throwable) {
+			this.time = time;
+			this.level = level;
+			this.name = name;
+			this.message = message;
+			this.throwable = throwable;
+		}
+	}
+
+	/**
+	 * A bounded multi-producer, single-consumer queue. Each slot has a sequence
+	 * number that tells whether it is free for the producer at a position or
+	 * filled for the consumer at a position, so producers only need a CAS on the
+	 * head.
+	 */
+	private static class RingBuffer<T> {
+		private final AtomicReferenceArray<T> slots;
+		private final AtomicLongArray sequences;
+		private final int mask;
+		private final AtomicLong head = new AtomicLong();
+		private volatile long tail;
+
+		RingBuffer(int capacity) {
+			int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+			slots = new AtomicReferenceArray<>(size);
+			sequences = new AtomicLongArray(size);
+			for (int i = 0; i != size; ++i)
+				sequences.set(i, i);
+			mask = size - 1;
+		}
+
+		int capacity() {
+			return mask + 1;
+		}
+
+		int size() {
+			return (int) Math.max(0, head.get() - tail);
+		}
+
+		boolean offer(T t) {
+			long pos = head.get();
+			for (;;) {
+				int idx = (int) (pos & mask);
+				long d = sequences.get(idx) - pos;
+				if (d == 0) {
+					if (head.compareAndSet(pos, pos + 1)) {
+						slots.set(idx, t);
+						sequences.set(idx, pos + 1);
+						return true;
+					}
+					pos = head.get();
+				} else if (d < 0) {
+					// the consumer has not freed the slot yet
+					return false;
+				} else {
+					pos = head.get();
+				}
+			}
+		}
+
+		/**
+		 * Must only be called by the consumer.
+		 */
+		T poll() {
+			long pos = tail;
+			int idx = (int) (pos & mask);
+			if (sequences.get(idx) != pos + 1)
+				return null;
+			T t = slots.get(idx);
+			slots.lazySet(idx, null);
+			sequences.set(idx, pos + mask + 1);
+			tail = pos + 1;
+			return t;
+		}
+	}
+
+	private final RingBuffer<Record> buffer;
+	private final Overflow overflow;
+	private final int sample;
+	private final Writer out;
+	private final Thread drainer;
+
+	private final LongAdder dropped = new LongAdder();
+	private final LongAdder sampledOut = new LongAdder();
+	private final AtomicLong offered = new AtomicLong();
+	private long reportedDropped;
+	private long reportedSampledOut;
+
+	private volatile boolean waiting;
+	private volatile boolean closed;
+
+	/**
+	 * @param file
+	 *            the file to append to, or {@code null} to log to
+	 *            {@code java.util.logging}
+	 * @param sample
+	 *            with {@link Overflow#SAMPLE}, every {@code sample}th record is
+	 *            kept
+	 */
+	LogBridge(int capacity, Overflow overflow, int sample, Path file) throws IOException {
+		this.buffer = new RingBuffer<>(capacity);
+		this.overflow = overflow;
+		this.sample = Math.max(1, sample);
+		this.out = file != null ? Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+				StandardOpenOption.APPEND) : null;
+
+		drainer = new Thread(this::drain, "e3-log");
+		drainer.setDaemon(true);
+		drainer.start();
+	}
+
+	/**
+	 * Listen to the log reader service and the framework events of
+	 * {@code context}.
+	 */
+	void attach(BundleContext context) {
+		context.addFrameworkListener(this);
+
+		ServiceReference<LogReaderService> sr = context.getServiceReference(LogReaderService.class);
+		if (sr == null) {
+			logger.warning("No LogReaderService, only forwarding framework events");
+			return;
+		}
+		context.getService(sr).addLogListener(this);
+	}
+
+	@Override
+	public void logged(LogEntry entry) {
+		Level level;
+		switch (entry.getLevel()) {
+		case LogService.LOG_ERROR:
+			level = Level.SEVERE;
+			break;
+		case LogService.LOG_WARNING:
+			level = Level.WARNING;
+			break;
+		case LogService.LOG_INFO:
+			level = Level.INFO;
+			break;
+		default:
+			level = Level.FINE;
+			break;
+		}
+		offer(new Record(entry.getTime(), level, getName(entry.getBundle()), entry.getMessage(),
+				entry.getException()));
+	}
+
+	@Override
+	public void frameworkEvent(FrameworkEvent event) {
+		Level level;
+		switch (event.getType()) {
+		case FrameworkEvent.ERROR:
+			level = Level.SEVERE;
+			break;
+		case FrameworkEvent.WARNING:
+			level = Level.WARNING;
+			break;
+		case FrameworkEvent.INFO:
+			level = Level.INFO;
+			break;
+		default:
+			level = Level.FINE;
+			break;
+		}
+		offer(new Record(System.currentTimeMillis(), level, getName(event.getBundle()),
+				"Framework event " + FrameworkMetrics.getFrameworkEventType(event.getType()), event.getThrowable()));
+	}
+
+	private static String getName(Bundle bundle) {
+		if (bundle == null || bundle.getSymbolicName() == null)
+			return "org.eclipse.osgi";
+		return bundle.getSymbolicName();
+	}
+
+	private void offer(Record r) {
+		if (closed)
+			return;
+
+		if (overflow == Overflow.SAMPLE && r.level.intValue() < Level.WARNING.intValue()
+				&& buffer.size() >= buffer.capacity() * 3 / 4 && offered.getAndIncrement() % sample != 0) {
+			sampledOut.increment();
+			return;
+		}
+
+		if (!buffer.offer(r)) {
+			dropped.increment();
+			return;
+		}
+
+		if (waiting)
+			LockSupport.unpark(drainer);
+	}
+
+	private void drain() {
+		for (;;) {
+			int n = 0;
+			for (Record r; n != BATCH && (r = buffer.poll()) != null; ++n)
+				write(r);
+
+			if (n != 0) {
+				flush();
+				continue;
+			}
+
+			report();
+			if (closed)
+				break;
+
+			waiting = true;
+			// re-check, a producer may have missed the flag
+			if (buffer.size() == 0 && !closed)
+				LockSupport.parkNanos(this, 100_000_000L);
+			waiting = false;
+		}
+	}
+
+	private void report() {
+		long dropped = this.dropped.sum();
+		long sampledOut = this.sampledOut.sum();
+		if (dropped != reportedDropped || sampledOut != reportedSampledOut) {
+			write(new Record(System.currentTimeMillis(), Level.WARNING, LogBridge.class.getName(),
+					"Log buffer overflow: " + (dropped - reportedDropped) + " records dropped, "
+							+ (sampledOut - reportedSampledOut) + " sampled out (" + dropped + "/" + sampledOut
+							+ " total)",
+					null));
+			flush();
+			reportedDropped = dropped;
+			reportedSampledOut = sampledOut;
+		}
+	}
+
+	// LogRecord.setInstant, which replaces setMillis, only exists since Java 9
+	@SuppressWarnings("deprecation")
+	private void write(Record r) {
+		if (out == null) {
+			LogRecord record = new LogRecord(r.level, r.message);
+			record.setLoggerName(r.name);
+			// not the bridge
+			record.setSourceClassName(r.name);
+			record.setMillis(r.time);
+			record.setThrown(r.throwable);
+			Logger.getLogger(r.name).log(record);
+			return;
+		}
+
+		try {
+			out.write(Instant.ofEpochMilli(r.time) + " " + r.level + " [" + r.name + "] " + r.message
+					+ System.lineSeparator());
+			if (r.throwable != null) {
+				PrintWriter pw = new PrintWriter(out);
+				r.throwable.printStackTrace(pw);
+				pw.flush();
+			}
+		} catch (IOException e) {
+			logger.log(Level.FINE, "Failed to write log: " + e, e);
+		}
+	}
+
+	private void flush() {
+		if (out == null)
+			return;
+		try {
+			out.flush();
+		} catch (IOException e) {
+			logger.log(Level.FINE, "Failed to flush log: " + e, e);
+		}
+	}
+
+	/**
+	 * Write the remaining records and stop. Records logged later are discarded.
+	 * An interrupt does not stop waiting for the remaining records, it is
+	 * restored when they are written.
+	 */
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		LockSupport.unpark(drainer);
+		boolean interrupted = false;
+		for (;;) {
+			try {
+				drainer.join();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+		if (out != null)
+			out.close();
+	}
+}
@@ -0,0 +1,104 @@
+package com.github.pms1.e3.launcher;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+
+/**
+ * JFR event for a {@link Timeline.Span}. The launcher is compiled for Java 8,
+ * which has no {@code jdk.jfr}, so the event type is created with
+ * {@code jdk.jfr.EventFactory} and used through reflection, and only if the
+ * JVM has a flight recorder.
+ *
+ * @author pms1
+ *
+ */
+final class SpanEvent {
+
+	private static Object factory;
+	private static Method newEvent;
+	private static Method begin;
+	private static Method end;
+	private static Method shouldCommit;
+	private static Method set;
+	private static Method commit;
+
+	private SpanEvent() {
+	}
+
+	/**
+	 * @return {@code true} if the JVM has a flight recorder that is recording
+	 *         and the event type could be created
+	 */
+	static synchronized boolean init() {
+		try {
+			// do not initialize a flight recorder that has not been started
+			if (!(Boolean) Class.forName("jdk.jfr.FlightRecorder").getMethod("isInitialized").invoke(null))
+				return false;
+
+			Constructor<?> annotation = Class.forName("jdk.jfr.AnnotationElement").getConstructor(Class.class,
+					Object.class);
+			Class<?> label = Class.forName("jdk.jfr.Label");
+			List<Object> annotations = Arrays.asList(
+					annotation.newInstance(Class.forName("jdk.jfr.Name"), "com.github.pms1.e3.Span"),
+					annotation.newInstance(label, "Launcher Span"),
+					annotation.newInstance(Class.forName("jdk.jfr.Category"), new String[] { "e3", "Launcher" }),
+					annotation.newInstance(Class.forName("jdk.jfr.Description"),
+							"A phase of the e3 launcher, e.g. starting the framework or installing a bundle"),
+					// it would only show the reflection
+					annotation.newInstance(Class.forName("jdk.jfr.StackTrace"), false));
+
+			Constructor<?> field = Class.forName("jdk.jfr.ValueDescriptor").getConstructor(Class.class,
+					String.class, List.class);
+			List<Object> fields = Arrays.asList(
+					field.newInstance(String.class, "category",
+							Collections.singletonList(annotation.newInstance(label, "Category"))),
+					field.newInstance(String.class, "name",
+							Collections.singletonList(annotation.newInstance(label, "Name"))));
+
+			Class<?> eventFactory = Class.forName("jdk.jfr.EventFactory");
+			factory = eventFactory.getMethod("create", List.class, List.class).invoke(null, annotations, fields);
+			newEvent = eventFactory.getMethod("newEvent");
+
+			Class<?> event = Class.forName("jdk.jfr.Event");
+			begin = event.getMethod("begin");
+			end = event.getMethod("end");
+			shouldCommit = event.getMethod("shouldCommit");
+			set = event.getMethod("set", int.class, Object.class);
+			commit = event.getMethod("commit");
+			return true;
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			Timeline.logger.log(Level.FINE, "No JFR span events: " + e, e);
+			return false;
+		}
+	}
+
+	static Object start() {
+		Object event = invoke(newEvent, factory);
+		invoke(begin, event);
+		return event;
+	}
+
+	static void finish(Object event, String category, String name) {
+		invoke(end, event);
+		if ((Boolean) invoke(shouldCommit, event)) {
+			invoke(set, event, 0, category);
+			invoke(set, event, 1, name);
+			invoke(commit, event);
+		}
+	}
+
+	private static Object invoke(Method method, Object target, Object... args) {
+		try {
+			return method.invoke(target, args);
+		} catch (InvocationTargetException e) {
+			throw new IllegalStateException(e.getCause());
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,465 @@
+package com.github.pms1.e3.launcher;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.lang.ProcessBuilder.Redirect;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * The framework storage area used by {@link E3Main1}.
+ *
+ * A temporary storage area is created for each launch and deleted on exit,
+ * preferably on a tmpfs. Temporary storage areas of killed processes are
+ * deleted by later launches. A persistent storage area is keyed by the
+ * content of the embedded jar and reused by later launches. Each persistent
+ * key has a fixed number of slots, each protected by a file lock, so that
+ * concurrent processes never share a storage area. The storage areas of keys
+ * that have not been used for a while, e.g. those of earlier builds of the
+ * jar, are deleted by later launches.
+ *
+ * @author pms1
+ *
+ */
+abstract class Storage {
+
+	static Logger logger = Logger.getLogger(Storage.class.getName());
+
+	/**
+	 * @return the directory to be used as {@code org.osgi.framework.storage}
+	 */
+	abstract Path getConfiguration();
+
+	/**
+	 * @return {@code true} if the storage outlives this launch
+	 */
+	abstract boolean isPersistent();
+
+	/**
+	 * @return {@code true} if a previous launch completed installing all bundles
+	 *         into this storage
+	 */
+	abstract boolean isInitialized();
+
+	/**
+	 * Record that all bundles have been installed into this storage.
+	 */
+	abstract void setInitialized() throws IOException;
+
+	/**
+	 * @return {@code configured}, or a tmpfs if one with enough space is
+	 *         available, or the default temporary directory
+	 */
+	static Path getTemporaryDirectory(String configured) {
+		if (configured != null)
+			return Paths.get(configured);
+
+		// not the 64 MiB that containers have by default
+		Path shm = Paths.get("/dev/shm");
+		try {
+			if (Files.isDirectory(shm) && Files.isWritable(shm)
+					&& Files.getFileStore(shm).getUsableSpace() >= MIN_TMPFS_SPACE)
+				return shm;
+		} catch (IOException e) {
+			logger.log(Level.FINE, "Not using " + shm + ": " + e, e);
+		}
+
+		return Paths.get(System.getProperty("java.io.tmpdir"));
+	}
+
+	private static final long MIN_TMPFS_SPACE = 1L << 30;
+
+	/**
+	 * Create a storage area in {@code baseDir} that is deleted on exit. It holds
+	 * a lock for the lifetime of the process, so that later launches can reap it
+	 * if the process is killed before it can delete it.
+	 */
+	static Storage createTemporary(Path baseDir) throws IOException {
+		reapOrphans(baseDir);
+
+		Path tempDir = Files.createTempDirectory(baseDir, "e3-");
+		logger.fine("Using temporary directory " + tempDir);
+		FileChannel lockChannel = FileChannel.open(tempDir.resolve(LOCK_FILE), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE);
+		lockChannel.lock();
+		Path storage = tempDir.resolve("configuration");
+		Files.createDirectory(storage);
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				try {
+					logger.fine("Deleting temporary storage " + tempDir);
+					// the lock would prevent deleting on Windows
+					lockChannel.close();
+					if (deleteDetached(tempDir)) {
+						logger.fine("Deleting temporary storage " + tempDir + " in the background");
+					} else {
+						delete(tempDir);
+						logger.fine("Deleted temporary storage " + tempDir);
+					}
+				} catch (IOException | UncheckedIOException e) {
+					logger.log(Level.WARNING, "Failed to delete temporary directory " + tempDir + ": " + e, e);
+				}
+			}
+		});
+
+		return new Storage() {
+			@Override
+			Path getConfiguration() {
+				return storage;
+			}
+
+			@Override
+			boolean isPersistent() {
+				return false;
+			}
+
+			@Override
+			boolean isInitialized() {
+				return false;
+			}
+
+			@Override
+			void setInitialized() {
+			}
+		};
+	}
+
+	private static final String LOCK_FILE = "e3.lock";
+
+	/**
+	 * Delete the temporary storage areas in {@code baseDir} whose process has
+	 * died, in the background.
+	 */
+	private static void reapOrphans(Path baseDir) {
+		Thread reaper = new Thread(() -> {
+			try (DirectoryStream<Path> dirs = Files.newDirectoryStream(baseDir, "e3-*")) {
+				for (Path dir : dirs) {
+					// skip directories of other applications, and ours while being created
+					Path lockFile = dir.resolve(LOCK_FILE);
+					if (!Files.isRegularFile(lockFile) || System.currentTimeMillis()
+							- Files.getLastModifiedTime(lockFile).toMillis() < TimeUnit.SECONDS.toMillis(10))
+						continue;
+
+					try (FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.WRITE);
+							FileLock lock = channel.tryLock()) {
+						if (lock == null)
+							continue;
+					} catch (OverlappingFileLockException e) {
+						continue;
+					}
+
+					logger.fine("Deleting orphaned temporary storage " + dir);
+					delete(dir);
+				}
+			} catch (IOException | UncheckedIOException e) {
+				logger.log(Level.FINE, "Failed to reap orphaned temporary storage in " + baseDir + ": " + e, e);
+			}
+		}, "e3-reaper");
+		reaper.setDaemon(true);
+		reaper.start();
+	}
+
+	/**
+	 * Delete {@code dir} with a process that outlives this one, so that the exit
+	 * does not wait for it.
+	 *
+	 * @return {@code false} if no such process could be started
+	 */
+	private static boolean deleteDetached(Path dir) {
+		if (File.separatorChar != '/')
+			return false;
+
+		try {
+			File devNull = new File("/dev/null");
+			new ProcessBuilder("rm", "-rf", dir.toString()).redirectInput(Redirect.from(devNull))
+					.redirectOutput(Redirect.to(devNull)).redirectErrorStream(true).start();
+			return true;
+		} catch (IOException e) {
+			logger.log(Level.FINE, "Failed to start deletion of " + dir + ": " + e, e);
+			return false;
+		}
+	}
+
+	/**
+	 * Delete {@code dir}, deleting the files in parallel.
+	 */
+	static void delete(Path dir) throws IOException {
+		List<Path> files = new ArrayList<>();
+		List<Path> dirs = new ArrayList<>();
+		Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+				files.add(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path d, IOException exc) {
+				dirs.add(d);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+
+		files.parallelStream().forEach(f -> {
+			try {
+				Files.deleteIfExists(f);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		});
+		// children before parents
+		for (Path d : dirs)
+			Files.deleteIfExists(d);
+	}
+
+	/**
+	 * Acquire a free slot of the persistent storage area for {@code key}.
+	 *
+	 * @param maxAge
+	 *            the days after their last use that the storage areas of other
+	 *            keys are kept, {@code 0} to keep them forever
+	 * @return the storage, or {@code null} if all slots are in use by other
+	 *         processes
+	 */
+	static Storage acquirePersistent(Path cacheDir, String key, int slots, int maxAge) throws IOException {
+		Path keyDir = cacheDir.resolve(key);
+		Files.createDirectories(keyDir);
+		// the modification time of the key directory records its last use
+		Files.setLastModifiedTime(keyDir, FileTime.fromMillis(System.currentTimeMillis()));
+		if (maxAge > 0)
+			reapUnused(cacheDir, keyDir, TimeUnit.DAYS.toMillis(maxAge));
+
+		for (int i = 0; i < slots; ++i) {
+			FileChannel channel = FileChannel.open(keyDir.resolve(i + ".lock"), StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE);
+			FileLock lock;
+			try {
+				lock = channel.tryLock();
+			} catch (OverlappingFileLockException e) {
+				lock = null;
+			}
+			if (lock == null) {
+				channel.close();
+				continue;
+			}
+
+			Path slot = keyDir.resolve(Integer.toString(i));
+			logger.fine("Using persistent storage " + slot);
+			return new PersistentStorage(slot, lock);
+		}
+
+		return null;
+	}
+
+	/**
+	 * Delete the persistent storage areas of the keys in {@code cacheDir} other
+	 * than {@code keyDir} that have not been used for {@code maxAge}
+	 * milliseconds, in the background. A key is only deleted if none of its
+	 * slots is in use.
+	 */
+	private static void reapUnused(Path cacheDir, Path keyDir, long maxAge) {
+		Thread reaper = new Thread(() -> {
+			try (DirectoryStream<Path> dirs = Files.newDirectoryStream(cacheDir)) {
+				for (Path dir : dirs)
+					if (!dir.equals(keyDir) && Files.isDirectory(dir) && isUnused(dir, maxAge))
+						reapKey(dir, maxAge);
+			} catch (IOException | UncheckedIOException e) {
+				logger.log(Level.FINE, "Failed to reap unused persistent storage in " + cacheDir + ": " + e, e);
+			}
+		}, "e3-storage-reaper");
+		reaper.setDaemon(true);
+		reaper.start();
+	}
+
+	private static boolean isUnused(Path keyDir, long maxAge) throws IOException {
+		return System.currentTimeMillis() - Files.getLastModifiedTime(keyDir).toMillis() >= maxAge;
+	}
+
+	private static void reapKey(Path keyDir, long maxAge) throws IOException {
+		List<FileChannel> channels = new ArrayList<>();
+		try {
+			try (DirectoryStream<Path> lockFiles = Files.newDirectoryStream(keyDir, "*.lock")) {
+				for (Path lockFile : lockFiles) {
+					FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.WRITE);
+					channels.add(channel);
+					FileLock lock;
+					try {
+						lock = channel.tryLock();
+					} catch (OverlappingFileLockException e) {
+						lock = null;
+					}
+					if (lock == null)
+						return;
+				}
+			}
+
+			// a launch touches the key directory before taking a slot
+			if (!isUnused(keyDir, maxAge))
+				return;
+
+			logger.fine("Deleting unused persistent storage " + keyDir);
+			try (DirectoryStream<Path> slots = Files.newDirectoryStream(keyDir)) {
+				for (Path slot : slots)
+					if (Files.isDirectory(slot))
+						delete(slot);
+			}
+		} finally {
+			for (FileChannel channel : channels)
+				channel.close();
+		}
+
+		// only the lock files are left, which are deleted after closing them for
+		// Windows
+		try {
+			delete(keyDir);
+		} catch (IOException | UncheckedIOException e) {
+			logger.log(Level.FINE, "Failed to delete " + keyDir + ": " + e, e);
+		}
+	}
+
+	private static class PersistentStorage extends Storage {
+		private final Path storage;
+		private final Path marker;
+		private final boolean initialized;
+
+		// held for the lifetime of the process
+		@SuppressWarnings("unused")
+		private final FileLock lock;
+
+		PersistentStorage(Path slot, FileLock lock) throws IOException {
+			this.storage = slot.resolve("configuration");
+			this.marker = slot.resolve("installed");
+			this.lock = lock;
+			Files.createDirectories(storage);
+			this.initialized = Files.exists(marker);
+		}
+
+		@Override
+		Path getConfiguration() {
+			return storage;
+		}
+
+		@Override
+		boolean isPersistent() {
+			return true;
+		}
+
+		@Override
+		boolean isInitialized() {
+			return initialized;
+		}
+
+		@Override
+		void setInitialized() throws IOException {
+			if (!initialized)
+				Files.createFile(marker);
+		}
+	}
+
+	/**
+	 * @return the jar containing {@code resource}, or {@code null} if it is not
+	 *         in a jar
+	 */
+	static Path getJar(URL resource) throws IOException {
+		URLConnection connection = resource.openConnection();
+		if (!(connection instanceof JarURLConnection))
+			return null;
+
+		try {
+			return Paths.get(((JarURLConnection) connection).getJarFileURL().toURI());
+		} catch (URISyntaxException | IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Compute a key that changes whenever the embedded jar or the launcher
+	 * configuration changes. The jar is identified by the names, sizes and CRCs
+	 * from its central directory, so this does not need to read the whole jar.
+	 * The configuration includes the system properties overriding the options of
+	 * {@code launcher.properties} that change what is installed, but not e.g.
+	 * the diagnostic options, which would otherwise each need a storage area of
+	 * their own.
+	 */
+	static String computeKey(Path jar, URL launcherProperties) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+
+		try (ZipFile zip = new ZipFile(jar.toFile())) {
+			for (Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements();) {
+				ZipEntry entry = e.nextElement();
+				digest.update(entry.getName().getBytes(StandardCharsets.UTF_8));
+				update(digest, entry.getSize());
+				update(digest, entry.getCrc());
+			}
+		}
+
+		ByteArrayOutputStream content = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		try (InputStream in = launcherProperties.openStream()) {
+			for (int read; (read = in.read(buffer)) != -1;)
+				content.write(buffer, 0, read);
+		}
+		digest.update(content.toByteArray());
+
+		Properties configured = new Properties();
+		configured.load(new ByteArrayInputStream(content.toByteArray()));
+		for (String name : new TreeSet<>(System.getProperties().stringPropertyNames())) {
+			if (!name.startsWith("e3.install.reference") && !name.startsWith("e3.install.lazy"))
+				continue;
+			String value = System.getProperty(name);
+			if (value.equals(configured.getProperty(name)))
+				continue;
+			digest.update((byte) 0);
+			digest.update(name.getBytes(StandardCharsets.UTF_8));
+			digest.update((byte) '=');
+			digest.update(value.getBytes(StandardCharsets.UTF_8));
+		}
+
+		StringBuilder result = new StringBuilder();
+		for (byte b : digest.digest())
+			result.append(String.format("%02x", b));
+		return result.toString();
+	}
+
+	private static void update(MessageDigest digest, long value) {
+		for (int i = 0; i != 8; ++i)
+			digest.update((byte) (value >>> (i * 8)));
+	}
+}
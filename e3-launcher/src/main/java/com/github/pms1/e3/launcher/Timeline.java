@@ -0,0 +1,141 @@
+package com.github.pms1.e3.launcher;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Timing spans for the phases of a launch.
+ *
+ * Spans are always recorded in memory. If a flight recording is running they
+ * are also emitted as {@link SpanEvent}s, and if {@code e3.trace.file} is set
+ * they are written as a Chrome trace-event file on exit, which can be opened
+ * in {@code chrome://tracing} or Perfetto.
+ *
+ * @author pms1
+ *
+ */
+class Timeline {
+
+	static Logger logger = Logger.getLogger(Timeline.class.getName());
+
+	private static final long origin = System.nanoTime();
+
+	private static final ConcurrentLinkedQueue<Span> spans = new ConcurrentLinkedQueue<>();
+
+	private static volatile boolean jfr;
+
+	static class Span implements AutoCloseable {
+		final String category;
+		final String name;
+		final long threadId;
+		final String threadName;
+		final long start;
+		volatile long duration = -1;
+		private final Object event;
+
+		private Span(String category, String name) {
+			this.category = category;
+			this.name = name;
+			this.threadId = Thread.currentThread().getId();
+			this.threadName = Thread.currentThread().getName();
+			this.event = jfr ? SpanEvent.start() : null;
+			this.start = System.nanoTime();
+		}
+
+		/**
+		 * @return the start of the span relative to the start of the launcher
+		 */
+		long getStart(TimeUnit unit) {
+			return unit.convert(start - origin, TimeUnit.NANOSECONDS);
+		}
+
+		long getDuration(TimeUnit unit) {
+			return unit.convert(duration, TimeUnit.NANOSECONDS);
+		}
+
+		@Override
+		public void close() {
+			duration = System.nanoTime() - start;
+			if (event != null)
+				SpanEvent.finish(event, category, name);
+			spans.add(this);
+		}
+	}
+
+	static Span begin(String category, String name) {
+		return new Span(category, name);
+	}
+
+	/**
+	 * @return the completed spans, in order of completion
+	 */
+	static List<Span> getSpans() {
+		return new ArrayList<>(spans);
+	}
+
+	/**
+	 * Emit spans as JFR events if the JVM has a flight recorder that is
+	 * recording.
+	 */
+	static void enableJfr() {
+		jfr = SpanEvent.init();
+		logger.fine("JFR span events " + (jfr ? "enabled" : "disabled"));
+	}
+
+	/**
+	 * Write the spans as a Chrome trace-event file when the JVM exits.
+	 */
+	static void writeOnExit(Path file) {
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				try {
+					write(file);
+				} catch (IOException e) {
+					logger.log(Level.WARNING, "Failed to write trace " + file + ": " + e, e);
+				}
+			}
+		});
+	}
+
+	static void write(Path file) throws IOException {
+		List<Span> spans = getSpans();
+
+		try (Writer w = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+			w.write("{\"traceEvents\":[\n");
+			boolean first = true;
+			for (Span s : spans) {
+				if (!first)
+					w.write(",\n");
+				first = false;
+				w.write("{\"ph\":\"X\",\"pid\":1,\"tid\":" + s.threadId + ",\"ts\":"
+						+ s.getStart(TimeUnit.MICROSECONDS) + ",\"dur\":" + s.getDuration(TimeUnit.MICROSECONDS)
+						+ ",\"cat\":" + quote(s.category) + ",\"name\":" + quote(s.name) + ",\"args\":{\"thread\":"
+						+ quote(s.threadName) + "}}");
+			}
+			w.write("\n]}\n");
+		}
+	}
+
+	static String quote(String s) {
+		StringBuilder result = new StringBuilder(s.length() + 2).append('"');
+		for (char c : s.toCharArray()) {
+			if (c == '"' || c == '\\')
+				result.append('\\').append(c);
+			else if (c < 0x20)
+				result.append(String.format("\\u%04x", (int) c));
+			else
+				result.append(c);
+		}
+		return result.append('"').toString();
+	}
+}
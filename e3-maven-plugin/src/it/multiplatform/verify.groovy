@@ -14,3 +14,26 @@ def buildLog = new File(basedir, 'build.log').readLines();
 assert buildLog.grep { it.contains('Deploying to ') }.size() == 2
 assert buildLog.grep { it.contains(' Equal to existing repository, skipping deployment') }.size() == 1
 }
+
+// the second build switched to e3.perClassifier without a clean, so a jar per
+// platform is attached, with only the bundles of its product
+for (def platform : ["win32.win32.x86", "win32.win32.x86_64"]) {
+	def jar = new ZipFile(new File(basedir, "hello-world-embedded/target/hello-world-embedded-0.0.0-SNAPSHOT-" + platform + ".jar"))
+	try {
+		assert jar.getEntry("com/github/pms1/e3/launcher/E3Main.class")
+		assert jar.getEntry("org/eclipse/osgi/launch/EquinoxFactory.class")
+		// from the output directory
+		assert jar.getEntry("hello-world.txt")
+
+		def properties = new Properties()
+		jar.getInputStream(jar.getEntry("launcher.properties")).withStream { properties.load(it) }
+		for (def bundle : properties.getProperty("osgi.bundles").split(","))
+			assert jar.getEntry(bundle.replaceFirst(/@.*/, "")) : bundle
+
+		def swt = jar.entries().toList()*.name.findAll { it.startsWith("plugins/org.eclipse.swt.win32.") }
+		assert swt.size() == 1
+		assert swt[0] ==~ java.util.regex.Pattern.quote("plugins/org.eclipse.swt." + platform + "_") + /\d.*/
+	} finally {
+		jar.close()
+	}
+}
@@ -0,0 +1,38 @@
+import java.util.zip.ZipFile
+
+def jar = new ZipFile(new File(basedir, "hello-world-embedded/target/hello-world-embedded-0.0.0-SNAPSHOT.jar"))
+try {
+	def properties = new Properties()
+	jar.getInputStream(jar.getEntry("launcher.properties")).withStream { properties.load(it) }
+	def bundles = properties.getProperty("osgi.bundles").split(",").collect { it.replaceFirst(/@.*/, "") }
+
+	def report = new File(basedir, "hello-world-embedded/target/e3-pruned.txt").readLines()
+	def header = report[0] =~ /^# (\d+) of (\d+) bundles pruned$/
+	assert header.matches()
+	def pruned = report.drop(1).collectEntries { def s = it.split("\t"); [(s[1]): s[0]] }
+	assert pruned.size() == header.group(1) as int
+
+	// nothing needs it
+	assert pruned["javax.inject"]
+	for (def file : pruned.values()) {
+		assert !jar.getEntry(file) : file
+		assert !bundles.contains(file) : file
+	}
+
+	// declares the application in its plugin.xml, but is not started
+	assert !pruned["hello-world-bundle"]
+	assert bundles.any { it.startsWith("plugins/hello-world-bundle_") }
+	// required by hello-world-bundle
+	assert !pruned["org.eclipse.equinox.app"]
+	// in keepBundles
+	assert !pruned["javax.xml"]
+
+	for (def bundle : bundles)
+		assert jar.getEntry(bundle) : bundle
+} finally {
+	jar.close()
+}
+
+// the product of test.product is not declared by a plugin.xml
+def buildLog = new File(basedir, "build.log").readLines()
+assert buildLog.grep { it.contains("No plugin.xml declares the application or product 'test'") }.size() == 1
@@ -14,3 +14,35 @@ def buildLog = new File(basedir, 'build.log').readLines();
 assert buildLog.grep { it.contains('Deploying to ') }.size() == 2
 assert buildLog.grep { it.contains(' Equal to existing repository, skipping deployment') }.size() == 1
 }
+
+// package-embedded stores the nested bundles and aligns their data
+def jar = new File(basedir, "hello-world-embedded/target/hello-world-embedded-0.0.0-SNAPSHOT.jar")
+byte[] data = jar.bytes
+def b = java.nio.ByteBuffer.wrap(data).order(java.nio.ByteOrder.LITTLE_ENDIAN)
+
+int end = data.length - 22
+while (b.getInt(end) != 0x06054b50)
+	--end
+int count = b.getShort(end + 10) & 0xffff
+int p = b.getInt(end + 16)
+
+int bundles = 0
+for (int i = 0; i < count; ++i) {
+	assert b.getInt(p) == 0x02014b50
+	int method = b.getShort(p + 10) & 0xffff
+	int nameLength = b.getShort(p + 28) & 0xffff
+	int extraLength = b.getShort(p + 30) & 0xffff
+	int commentLength = b.getShort(p + 32) & 0xffff
+	int local = b.getInt(p + 42)
+	String name = new String(data, p + 46, nameLength, "UTF-8")
+
+	if (name ==~ /plugins\/[^\/]+\.jar/) {
+		assert method == 0 : name + " is not stored"
+		long start = local + 30 + (b.getShort(local + 26) & 0xffff) + (b.getShort(local + 28) & 0xffff)
+		assert start % 4096 == 0 : name + " starts at " + start
+		++bundles
+	}
+
+	p += 46 + nameLength + extraLength + commentLength
+}
+assert bundles != 0
@@ -14,3 +14,33 @@ def buildLog = new File(basedir, 'build.log').readLines();
 assert buildLog.grep { it.contains('Deploying to ') }.size() == 2
 assert buildLog.grep { it.contains(' Equal to existing repository, skipping deployment') }.size() == 1
 }
+
+// the second build switched to e3.singlePass without a clean, so its jar must
+// not contain anything left over from the first build, which extracted the
+// framework, the launcher and the bundles
+def entries = { String mode ->
+	def result = [:]
+	def jar = new ZipFile(new File(basedir, "hello-world-embedded/target/hello-world-embedded-" + mode + ".jar"))
+	try {
+		jar.entries().each { result[it.name] = it.crc }
+	} finally {
+		jar.close()
+	}
+	return result
+}
+
+def extracted = entries("extract")
+def singlePass = entries("singlePass")
+assert extracted.keySet() == singlePass.keySet()
+// the bundles built by the test are packaged again by the second build
+assert extracted.findAll { it.key.endsWith(".class") } == singlePass.findAll { it.key.endsWith(".class") }
+
+// the third build attached the archive of the training run, if the Java
+// running the build has class data sharing archives
+def javaVersion = System.getProperty("java.specification.version").replaceFirst(/^1[.]/, "") as int
+if (javaVersion >= 11) {
+	def archive = javaVersion >= 24 ? "aot.aot" : "cds.jsa"
+	assert new File(basedir, "hello-world-embedded/target/hello-world-embedded-cds-" + archive).isFile()
+	assert new File(localRepositoryPath,
+			"com/github/pms1/e3/test/hello-world-embedded/0.0.0-SNAPSHOT/hello-world-embedded-0.0.0-SNAPSHOT-" + archive).isFile()
+}
@@ -0,0 +1,194 @@
+package com.github.pms1.e3.maven;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import org.apache.maven.artifact.Artifact;
+
+/**
+ * The inputs and outputs of a {@code create-embedded} run, recorded in
+ * {@code target/} so the next run can skip the work whose inputs did not
+ * change.
+ *
+ * The inputs are the plugin version, the SHA-1 of the e3-launcher jar, the
+ * mode and options, the launcher configuration and the SHA-1 of each
+ * dependency. The SHA-1 of a file is only computed again if its size or
+ * modification time changed.
+ *
+ * @author pms1
+ *
+ */
+class BuildState {
+
+	private final Properties properties = new Properties();
+
+	static BuildState read(Path file) throws IOException {
+		BuildState result = new BuildState();
+		if (Files.isRegularFile(file))
+			try (InputStream in = Files.newInputStream(file)) {
+				result.properties.load(in);
+			}
+		return result;
+	}
+
+	void write(Path file) throws IOException {
+		Files.createDirectories(file.getParent());
+		Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+		try (OutputStream out = Files.newOutputStream(tmp)) {
+			properties.store(out, "create-embedded");
+		}
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	static String getKey(Artifact a) {
+		return a.getGroupId() + ":" + a.getArtifactId() + ":" + a.getType()
+				+ (a.getClassifier() != null ? ":" + a.getClassifier() : "");
+	}
+
+	/**
+	 * Record the SHA-1 of the file of {@code a}, reusing the one of
+	 * {@code previous} if the file looks unchanged.
+	 */
+	String putArtifact(Artifact a, BuildState previous) throws IOException {
+		return putFile("artifact." + getKey(a) + ".", a.getFile().toPath(), previous);
+	}
+
+	/**
+	 * Record the SHA-1 of the e3-launcher jar, which is embedded as is. Its
+	 * version is the plugin version, but a snapshot can change without it.
+	 */
+	void putLauncher(Artifact a, BuildState previous) throws IOException {
+		putFile("launcher.", a.getFile().toPath(), previous);
+	}
+
+	private String putFile(String prefix, Path file, BuildState previous) throws IOException {
+		String size = Long.toString(Files.size(file));
+		String modified = Long.toString(Files.getLastModifiedTime(file).toMillis());
+
+		String sha1 = previous.properties.getProperty(prefix + "sha1");
+		if (sha1 == null || !file.toString().equals(previous.properties.getProperty(prefix + "file"))
+				|| !size.equals(previous.properties.getProperty(prefix + "size"))
+				|| !modified.equals(previous.properties.getProperty(prefix + "modified")))
+			sha1 = sha1(file);
+
+		properties.put(prefix + "file", file.toString());
+		properties.put(prefix + "size", size);
+		properties.put(prefix + "modified", modified);
+		properties.put(prefix + "sha1", sha1);
+		return sha1;
+	}
+
+	String getArtifact(Artifact a) {
+		return properties.getProperty("artifact." + getKey(a) + ".sha1");
+	}
+
+	/**
+	 * @param mode
+	 *            how the output is written, i.e. extracted, single-pass or per
+	 *            classifier
+	 */
+	void putInputs(String pluginVersion, String mode, Map<String, String> launcherConfiguration) {
+		properties.put("plugin.version", pluginVersion);
+		properties.put("mode", mode);
+		if (launcherConfiguration != null)
+			new TreeMap<>(launcherConfiguration).forEach((k, v) -> properties.put("configuration." + k, v));
+	}
+
+	/**
+	 * Record an option that changes the output.
+	 */
+	void putOption(String key, String value) {
+		properties.put("option." + key, value);
+	}
+
+	/**
+	 * @return whether the inputs equal those of {@code other}
+	 */
+	boolean hasSameInputs(BuildState other) {
+		return getInputs().equals(other.getInputs());
+	}
+
+	private Map<String, String> getInputs() {
+		Map<String, String> result = new TreeMap<>();
+		for (String key : properties.stringPropertyNames())
+			if (key.equals("plugin.version") || key.equals("launcher.sha1") || key.equals("mode")
+					|| key.startsWith("configuration.") || key.startsWith("option.")
+					|| key.startsWith("artifact.") && key.endsWith(".sha1"))
+				result.put(key, properties.getProperty(key));
+		return result;
+	}
+
+	/**
+	 * The artifact the framework and the launcher were extracted from.
+	 */
+	void putFramework(Artifact a, String framework) {
+		properties.put("framework", getKey(a) + " " + framework + " " + getArtifact(a));
+	}
+
+	boolean hasSameFramework(BuildState other) {
+		return properties.getProperty("framework") != null
+				&& Objects.equals(properties.getProperty("plugin.version"), other.properties.getProperty("plugin.version"))
+				&& Objects.equals(properties.getProperty("launcher.sha1"), other.properties.getProperty("launcher.sha1"))
+				&& Objects.equals(properties.getProperty("mode"), other.properties.getProperty("mode"))
+				&& properties.getProperty("framework").equals(other.properties.getProperty("framework"));
+	}
+
+	/**
+	 * The bundles copied to {@code plugins/}, relative to the output directory.
+	 */
+	void putPlugins(List<String> plugins) {
+		properties.put("plugins", String.join(",", plugins));
+	}
+
+	List<String> getPlugins() {
+		return getList("plugins");
+	}
+
+	/**
+	 * The files extracted from the framework and the launcher, relative to the
+	 * output directory.
+	 */
+	void putExtracted(List<String> extracted) {
+		properties.put("extracted", String.join(",", extracted));
+	}
+
+	List<String> getExtracted() {
+		return getList("extracted");
+	}
+
+	private List<String> getList(String key) {
+		String value = properties.getProperty(key, "");
+		return value.isEmpty() ? Collections.emptyList() : Arrays.asList(value.split(","));
+	}
+
+	private static String sha1(Path p) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+		byte[] buffer = new byte[64 * 1024];
+		try (InputStream in = Files.newInputStream(p)) {
+			for (int read; (read = in.read(buffer)) != -1;)
+				digest.update(buffer, 0, read);
+		}
+		StringBuilder result = new StringBuilder();
+		for (byte b : digest.digest())
+			result.append(String.format("%02x", b));
+		return result.toString();
+	}
+}
@@ -0,0 +1,215 @@
+package com.github.pms1.e3.maven;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * Cache of bundles shared by all builds, keyed by their SHA-1. A bundle is
+ * extracted into the cache once and then hard-linked into the output directory
+ * of each build that uses it, or copied where hard links are not supported.
+ *
+ * Entries are written to a temporary file and renamed atomically, so
+ * concurrent builds only ever see complete entries. An entry shares its
+ * attributes with the files linked to it, so neither its permissions nor its
+ * modification time are changed. Builds replace the bundles in their output
+ * directories instead of writing to them, so the entries are not modified
+ * through a link either.
+ *
+ * Using an entry touches a {@code .used} marker next to it, and
+ * {@link #evict()} deletes the least recently used entries until the cache
+ * fits its maximum size. Deleting an entry does not affect the output
+ * directories it is linked into.
+ *
+ * @author pms1
+ *
+ */
+class BundleCache {
+
+	private static class Entry {
+		final Path path;
+		final long size;
+		final FileTime used;
+
+		Entry(Path path, long size, FileTime used) {
+			this.path = path;
+			this.size = size;
+			this.used = used;
+		}
+	}
+
+	private static final String USED = ".used";
+
+	private final Path directory;
+
+	private final long maxSize;
+
+	private final Log log;
+
+	BundleCache(Path directory, long maxSize, Log log) {
+		this.directory = directory;
+		this.maxSize = maxSize;
+		this.log = log;
+	}
+
+	/**
+	 * Create {@code dest} with the content of {@code source}, whose SHA-1 is
+	 * {@code sha1}.
+	 */
+	void link(Path source, byte[] sha1, Path dest) throws IOException {
+		String name = toHex(sha1);
+		Path entry = directory.resolve(name.substring(0, 2)).resolve(name);
+
+		// an entry may be evicted concurrently between adding and linking it
+		for (int attempt = 0;; ++attempt) {
+			if (!Files.exists(entry))
+				add(source, entry);
+			markUsed(entry);
+			try {
+				Files.createLink(dest, entry);
+				return;
+			} catch (NoSuchFileException e) {
+				if (attempt == 1 || Files.exists(dest))
+					throw e;
+			} catch (UnsupportedOperationException | FileSystemException e) {
+				// e.g. the output directory is on another file system
+				log.debug("Cannot link " + dest + " to " + entry + ", copying it: " + e);
+				Files.copy(entry, dest);
+				return;
+			}
+		}
+	}
+
+	private void add(Path source, Path entry) throws IOException {
+		Files.createDirectories(entry.getParent());
+		Path tmp = Files.createTempFile(entry.getParent(), entry.getFileName().toString(), ".tmp");
+		try {
+			Files.copy(source, tmp, StandardCopyOption.REPLACE_EXISTING);
+			try {
+				Files.move(tmp, entry, StandardCopyOption.ATOMIC_MOVE);
+			} catch (IOException e) {
+				// unless added concurrently
+				if (!Files.exists(entry))
+					throw e;
+			}
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+
+	private static Path getMarker(Path entry) {
+		return entry.resolveSibling(entry.getFileName() + USED);
+	}
+
+	private static void markUsed(Path entry) throws IOException {
+		Path marker = getMarker(entry);
+		try {
+			Files.setLastModifiedTime(marker, FileTime.fromMillis(System.currentTimeMillis()));
+		} catch (NoSuchFileException e) {
+			Files.createDirectories(marker.getParent());
+			try {
+				Files.createFile(marker);
+			} catch (FileAlreadyExistsException e1) {
+				// created concurrently
+			}
+		}
+	}
+
+	/**
+	 * Delete the least recently used entries until the cache is not larger
+	 * than its maximum size. Does nothing if another build is evicting at the
+	 * same time.
+	 */
+	void evict() throws IOException {
+		if (!Files.isDirectory(directory))
+			return;
+
+		try (FileChannel channel = FileChannel.open(directory.resolve(".lock"), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE); FileLock lock = tryLock(channel)) {
+			if (lock == null)
+				return;
+
+			List<Path> files;
+			try (Stream<Path> s = Files.walk(directory, 2)) {
+				files = s.filter(p -> !p.getParent().equals(directory) && Files.isRegularFile(p)
+						&& !p.getFileName().toString().endsWith(".tmp")).collect(Collectors.toList());
+			}
+
+			long size = 0;
+			List<Entry> sorted = new ArrayList<>();
+			for (Path p : files) {
+				if (p.getFileName().toString().endsWith(USED)) {
+					// left over if the entry was deleted by hand
+					Path entry = p.resolveSibling(p.getFileName().toString().replaceFirst(USED + "$", ""));
+					if (!Files.exists(entry))
+						Files.deleteIfExists(p);
+					continue;
+				}
+				try {
+					Entry e = new Entry(p, Files.size(p), getUsed(p));
+					size += e.size;
+					sorted.add(e);
+				} catch (NoSuchFileException e) {
+					// deleted concurrently
+				}
+			}
+			sorted.sort(Comparator.comparing(e -> e.used));
+
+			int deleted = 0;
+			for (Entry e : sorted) {
+				if (size <= maxSize)
+					break;
+				if (Files.deleteIfExists(e.path))
+					++deleted;
+				Files.deleteIfExists(getMarker(e.path));
+				size -= e.size;
+			}
+
+			if (deleted != 0)
+				log.info("Evicted " + deleted + " bundles from " + directory);
+		}
+	}
+
+	/**
+	 * @return when {@code entry} was used last, or added if that is unknown
+	 */
+	private static FileTime getUsed(Path entry) throws IOException {
+		try {
+			return Files.getLastModifiedTime(getMarker(entry));
+		} catch (NoSuchFileException e) {
+			return Files.getLastModifiedTime(entry);
+		}
+	}
+
+	private static FileLock tryLock(FileChannel channel) throws IOException {
+		try {
+			return channel.tryLock();
+		} catch (OverlappingFileLockException e) {
+			// held by another build in this JVM
+			return null;
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder result = new StringBuilder();
+		for (byte b : bytes)
+			result.append(String.format("%02x", b));
+		return result.toString();
+	}
+}
@@ -0,0 +1,224 @@
+package com.github.pms1.e3.maven;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugins.annotations.Component;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.apache.maven.project.MavenProject;
+import org.apache.maven.project.MavenProjectHelper;
+
+/**
+ * Run the embedded jar in a training run and create a class data sharing
+ * archive (Java 11 to 23) or an AOT cache (Java 24 and later) from it. The
+ * archive is attached with classifier {@code cds} (type {@code jsa}) or
+ * {@code aot} (type {@code aot}) and must be passed to the JVM with
+ * {@code -XX:SharedArchiveFile} or {@code -XX:AOTCache} respectively.
+ *
+ * Unless {@link #trainingArguments} are given, the training run sets
+ * {@code e3.training=true}, so the launcher starts the framework and all
+ * bundles and then exits without running the application. The training run
+ * keeps its persistent storage and extracted bundles in
+ * {@link #workDirectory} instead of the user's {@code ~/.e3}, and does not
+ * use a daemon.
+ *
+ * Whether the classes of the framework class loader created by
+ * {@code E3Main} are archived depends on the Java version: dynamic archives of
+ * Java 17 include them, older static archives only cover the JDK and
+ * {@code E3Main} itself.
+ */
+@Mojo(name = "create-cds-archive", defaultPhase = LifecyclePhase.PACKAGE)
+public class CdsMojo extends AbstractMojo {
+
+	@Parameter(property = "project", readonly = true)
+	private MavenProject project;
+
+	@Component
+	private MavenProjectHelper projectHelper;
+
+	/**
+	 * The java executable to create the archive with. This must be the same Java
+	 * version that will run the embedded jar.
+	 */
+	@Parameter(property = "e3.cds.java", defaultValue = "${java.home}/bin/java")
+	private File javaExecutable;
+
+	/**
+	 * Additional arguments for the JVM of the training run.
+	 */
+	@Parameter
+	private List<String> jvmArguments;
+
+	/**
+	 * Arguments for the application. If set, the training run runs the
+	 * application with these arguments instead of stopping after startup.
+	 */
+	@Parameter
+	private List<String> trainingArguments;
+
+	@Parameter(property = "e3.cds.skip", defaultValue = "false")
+	private boolean skip;
+
+	@Parameter(defaultValue = "${project.build.directory}/e3-cds", readonly = true)
+	private File workDirectory;
+
+	public void execute() throws MojoExecutionException, MojoFailureException {
+		if (skip)
+			return;
+
+		File jar = project.getArtifact().getFile();
+		if (jar == null || !jar.isFile())
+			throw new MojoExecutionException("The embedded jar must be packaged before creating a CDS archive");
+
+		int version = getJavaVersion();
+
+		String base = jar.getName().replaceFirst("[.]jar$", "");
+		String classifier = version >= 24 ? "aot" : "cds";
+		String type = version >= 24 ? "aot" : "jsa";
+		File archive = new File(jar.getParentFile(), base + "-" + classifier + "." + type);
+
+		if (version < 11)
+			throw new MojoExecutionException(
+					"Creating a CDS archive requires Java 11 or later, " + javaExecutable + " is " + version);
+
+		try {
+			Files.deleteIfExists(archive.toPath());
+		} catch (IOException e) {
+			throw new MojoExecutionException("Failed to delete " + archive, e);
+		}
+
+		try {
+			// a cold start every time
+			deleteRecursively(workDirectory.toPath());
+			Files.createDirectories(workDirectory.toPath());
+		} catch (IOException e) {
+			throw new MojoExecutionException("Failed to create " + workDirectory, e);
+		}
+
+		if (version < 13) {
+			File classList = new File(jar.getParentFile(), base + ".classlist");
+			run(jar, "-XX:DumpLoadedClassList=" + classList);
+			exec("archive dump", javaExecutable.toString(), "-Xshare:dump", "-XX:SharedClassListFile=" + classList,
+					"-XX:SharedArchiveFile=" + archive, "-cp", jar.toString());
+		} else if (version < 24) {
+			run(jar, "-XX:ArchiveClassesAtExit=" + archive);
+		} else if (version < 25) {
+			File config = new File(jar.getParentFile(), base + ".aotconf");
+			run(jar, "-XX:AOTMode=record", "-XX:AOTConfiguration=" + config);
+			exec("archive dump", javaExecutable.toString(), "-XX:AOTMode=create", "-XX:AOTConfiguration=" + config,
+					"-XX:AOTCache=" + archive, "-cp", jar.toString());
+		} else {
+			run(jar, "-XX:AOTCacheOutput=" + archive);
+		}
+
+		if (!archive.isFile())
+			throw new MojoExecutionException("Training run did not create " + archive);
+
+		getLog().info("Created " + archive);
+		projectHelper.attachArtifact(project, type, classifier, archive);
+	}
+
+	private void run(File jar, String... archiveArguments) throws MojoExecutionException {
+		List<String> command = new ArrayList<>();
+		command.add(javaExecutable.toString());
+		for (String s : archiveArguments)
+			command.add(s);
+		// before the jvmArguments, so they can override it
+		command.add("-De3.storage.cache=" + new File(workDirectory, "storage"));
+		command.add("-De3.install.reference.cache=" + new File(workDirectory, "bundles"));
+		command.add("-De3.daemon=false");
+		if (jvmArguments != null)
+			command.addAll(jvmArguments);
+		if (trainingArguments == null)
+			command.add("-De3.training=true");
+		command.add("-jar");
+		command.add(jar.toString());
+		if (trainingArguments != null)
+			command.addAll(trainingArguments);
+		exec("training run", command.toArray(new String[0]));
+	}
+
+	/**
+	 * @param step
+	 *            what the command does, for error messages
+	 */
+	private List<String> exec(String step, String... command) throws MojoExecutionException {
+		getLog().debug("Running " + String.join(" ", command));
+
+		ProcessBuilder pb = new ProcessBuilder(command);
+		pb.redirectErrorStream(true);
+
+		Process process;
+		List<String> output = new ArrayList<>();
+		try {
+			process = pb.start();
+			try (BufferedReader r = new BufferedReader(
+					new InputStreamReader(process.getInputStream(), Charset.defaultCharset()))) {
+				for (String line = r.readLine(); line != null; line = r.readLine()) {
+					getLog().debug(line);
+					output.add(line);
+				}
+			}
+		} catch (IOException e) {
+			throw new MojoExecutionException("The " + step + " failed to run " + command[0] + ": " + e, e);
+		}
+
+		int exitCode;
+		try {
+			exitCode = process.waitFor();
+		} catch (InterruptedException e) {
+			process.destroy();
+			Thread.currentThread().interrupt();
+			throw new MojoExecutionException("Interrupted during the " + step, e);
+		}
+		if (exitCode != 0) {
+			for (String line : output)
+				getLog().error(line);
+			throw new MojoExecutionException(
+					"The " + step + " failed with exit code " + exitCode + ", see its output above: "
+							+ String.join(" ", command));
+		}
+
+		return output;
+	}
+
+	private static void deleteRecursively(Path p) throws IOException {
+		if (!Files.exists(p))
+			return;
+		try (Stream<Path> s = Files.walk(p)) {
+			for (Path q : s.sorted(Comparator.reverseOrder()).collect(Collectors.toList()))
+				Files.delete(q);
+		}
+	}
+
+	private int getJavaVersion() throws MojoExecutionException {
+		List<String> output = exec("version check", javaExecutable.toString(), "-version");
+
+		// 'openjdk version "1.8.0_392"', 'openjdk version "17.0.9" 2023-10-17'
+		Pattern p = Pattern.compile("version \"(1[.])?(?<feature>\\d+)");
+		for (String line : output) {
+			Matcher m = p.matcher(line);
+			if (m.find())
+				return Integer.parseInt(m.group("feature"));
+		}
+
+		throw new MojoExecutionException("Failed to determine Java version of " + javaExecutable + ": " + output);
+	}
+}
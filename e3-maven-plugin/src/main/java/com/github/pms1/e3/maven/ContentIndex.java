@@ -0,0 +1,199 @@
+package com.github.pms1.e3.maven;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.CRC32;
+
+/**
+ * Index of files by content, to store each bundle only once in the embedded
+ * jar.
+ *
+ * Files are indexed by size. Candidates of the same size are compared by
+ * CRC-32, which for files in a zip file system is taken from its central
+ * directory, and only files with the same CRC-32 are compared by SHA-1. Both
+ * are computed lazily in the common fork-join pool, concurrently for all
+ * candidates of a lookup, and memoized.
+ *
+ * @author pms1
+ *
+ */
+class ContentIndex {
+
+	private class Entry {
+		final Path path;
+		final long size;
+		final Entry copyOf;
+		CompletableFuture<Long> crc;
+		CompletableFuture<byte[]> sha1;
+
+		Entry(Path path) throws IOException {
+			this.path = path;
+			this.size = Files.size(path);
+			this.copyOf = null;
+			if (path.getFileSystem().supportedFileAttributeViews().contains("zip"))
+				crc = CompletableFuture.completedFuture((Long) Files.getAttribute(path, "zip:crc"));
+		}
+
+		/**
+		 * A copy, that might not have been written yet, so its checksums are
+		 * those of {@code copyOf}.
+		 */
+		Entry(Path path, Entry copyOf) {
+			this.path = path;
+			this.size = copyOf.size;
+			this.copyOf = copyOf;
+		}
+
+		CompletableFuture<Long> crc() {
+			if (crc == null)
+				crc = copyOf != null ? copyOf.crc()
+						: CompletableFuture.supplyAsync(() -> checksum(path), ForkJoinPool.commonPool());
+			return crc;
+		}
+
+		CompletableFuture<byte[]> sha1() {
+			if (sha1 == null)
+				sha1 = copyOf != null ? copyOf.sha1()
+						: CompletableFuture.supplyAsync(() -> digest(path), ForkJoinPool.commonPool());
+			return sha1;
+		}
+	}
+
+	private final Map<Path, Entry> byPath = new HashMap<>();
+
+	private final Map<Long, List<Entry>> bySize = new HashMap<>();
+
+	/**
+	 * Files that have been looked up, so their checksums are reused when they
+	 * are looked up again or registered with {@link #register(Path, Path)}.
+	 */
+	private final Map<Path, Entry> probes = new HashMap<>();
+
+	void register(Path p) throws IOException {
+		add(new Entry(p));
+	}
+
+	/**
+	 * Register {@code p} as a copy of {@code copyOf}.
+	 */
+	void register(Path p, Path copyOf) throws IOException {
+		add(new Entry(p, probe(copyOf)));
+	}
+
+	void remove(Path p) {
+		Entry entry = byPath.remove(p);
+		if (entry != null)
+			bySize.get(entry.size).remove(entry);
+	}
+
+	private void add(Entry entry) {
+		if (byPath.putIfAbsent(entry.path, entry) != null)
+			throw new IllegalArgumentException("Duplicate: " + entry.path);
+		bySize.computeIfAbsent(entry.size, k -> new ArrayList<>()).add(entry);
+	}
+
+	private Entry probe(Path p) throws IOException {
+		Entry entry = byPath.get(p);
+		if (entry == null)
+			entry = probes.get(p);
+		if (entry == null) {
+			entry = new Entry(p);
+			probes.put(p, entry);
+		}
+		return entry;
+	}
+
+	/**
+	 * @return a registered file with the same content as {@code p}, or
+	 *         {@code null}
+	 */
+	Path find(Path p) throws IOException {
+		Entry probe = probe(p);
+
+		List<Entry> sizeMatch = bySize.get(probe.size);
+		if (sizeMatch == null)
+			return null;
+
+		probe.crc();
+		sizeMatch.forEach(Entry::crc);
+		long crc = join(probe.crc());
+		List<Entry> crcMatch = new ArrayList<>();
+		for (Entry e : sizeMatch)
+			if (join(e.crc()) == crc)
+				crcMatch.add(e);
+		if (crcMatch.isEmpty())
+			return null;
+
+		probe.sha1();
+		crcMatch.forEach(Entry::sha1);
+		byte[] sha1 = join(probe.sha1());
+		for (Entry e : crcMatch)
+			if (Arrays.equals(join(e.sha1()), sha1))
+				return e.path;
+		return null;
+	}
+
+	/**
+	 * @return the SHA-1 of {@code p}. Unlike the other methods, this can be
+	 *         called concurrently.
+	 */
+	byte[] getSha1(Path p) throws IOException {
+		CompletableFuture<byte[]> sha1;
+		synchronized (this) {
+			sha1 = probe(p).sha1();
+		}
+		return join(sha1);
+	}
+
+	private static <T> T join(CompletableFuture<T> future) throws IOException {
+		try {
+			return future.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof UncheckedIOException)
+				throw new IOException(e.getCause().getMessage(), e.getCause().getCause());
+			throw e;
+		}
+	}
+
+	private static long checksum(Path p) {
+		CRC32 crc = new CRC32();
+		byte[] buffer = new byte[32 * 1024];
+		try (InputStream in = Files.newInputStream(p)) {
+			for (int read; (read = in.read(buffer)) != -1;)
+				crc.update(buffer, 0, read);
+		} catch (IOException e) {
+			throw new UncheckedIOException("Failed to checksum " + p, e);
+		}
+		return crc.getValue();
+	}
+
+	private static byte[] digest(Path p) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+		byte[] buffer = new byte[32 * 1024];
+		try (InputStream in = Files.newInputStream(p)) {
+			for (int read; (read = in.read(buffer)) != -1;)
+				digest.update(buffer, 0, read);
+		} catch (IOException e) {
+			throw new UncheckedIOException("Failed to digest " + p, e);
+		}
+		return digest.digest();
+	}
+}
@@ -1,15 +1,15 @@
 package com.github.pms1.e3.maven;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryNotEmptyException;
 import java.nio.file.FileSystem;
 import java.nio.file.FileSystems;
 import java.nio.file.FileVisitResult;
@@ -17,12 +17,17 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.BasicFileAttributes;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.util.AbstractMap.SimpleImmutableEntry;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -30,14 +35,27 @@ import java.util.Objects;
 import java.util.Optional;
 import java.util.Properties;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.jar.Attributes;
+import java.util.jar.JarFile;
 import java.util.jar.Manifest;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
 import org.apache.maven.MavenExecutionException;
 import org.apache.maven.artifact.Artifact;
 import org.apache.maven.artifact.repository.ArtifactRepository;
@@ -46,6 +64,7 @@ import org.apache.maven.artifact.resolver.ArtifactResolutionRequest;
 import org.apache.maven.artifact.resolver.ArtifactResolutionResult;
 import org.apache.maven.artifact.resolver.ResolutionErrorHandler;
 import org.apache.maven.execution.MavenSession;
+import org.apache.maven.model.Plugin;
 import org.apache.maven.plugin.AbstractMojo;
 import org.apache.maven.plugin.MojoExecution;
 import org.apache.maven.plugin.MojoExecutionException;
@@ -62,7 +81,13 @@ import org.apache.maven.shared.dependency.graph.DependencyGraphBuilder;
 import org.apache.maven.shared.dependency.graph.DependencyGraphBuilderException;
 import org.apache.maven.shared.dependency.graph.DependencyNode;
 import org.apache.maven.shared.dependency.graph.traversal.DependencyNodeVisitor;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
 
+import com.github.pms1.e3.launcher.BundleIndex;
 import com.github.pms1.e3.launcher.E3Main;
 
 @Mojo(name = "create-embedded", requiresDependencyResolution = ResolutionScope.RUNTIME)
@@ -92,94 +117,157 @@ public class EmbedMojo extends AbstractMojo {
 	@Parameter(defaultValue = "${project.build.outputDirectory}/META-INF/MANIFEST.MF", readonly = true)
 	private File manifestPath;
 
+	/**
+	 * Where the inputs and outputs of the last run are recorded, see
+	 * {@link BuildState}.
+	 */
+	@Parameter(defaultValue = "${project.build.directory}/e3-embedded.state", readonly = true)
+	private File stateFile;
+
+	/**
+	 * Options for the launcher, written to {@code launcher.properties} with the
+	 * prefix {@code e3.}. They can be overridden at runtime by system properties
+	 * of the same name, e.g. {@code <storage>persistent</storage>} by
+	 * {@code -De3.storage=temporary}.
+	 */
+	@Parameter
+	private Map<String, String> launcherConfiguration;
+
+	/**
+	 * Whether to extract bundles into a cache shared by all builds and link
+	 * them from there, see {@link BundleCache}.
+	 */
+	@Parameter(property = "e3.bundleCache", defaultValue = "false")
+	private boolean bundleCache;
+
+	@Parameter(property = "e3.bundleCache.directory", defaultValue = "${settings.localRepository}/.cache/e3/bundles")
+	private File bundleCacheDirectory;
+
+	/**
+	 * The maximum size of the bundle cache in MiB.
+	 */
+	@Parameter(property = "e3.bundleCache.maxSize", defaultValue = "4096")
+	private long bundleCacheMaxSize;
+
+	/**
+	 * Whether to leave the framework, the launcher and the bundles in the
+	 * artifacts they come from and record them in {@link #planFile}, so
+	 * {@code package-embedded} writes them to the embedded jar directly instead
+	 * of extracting them to the output directory first. Requires an execution
+	 * of {@code package-embedded}, see {@link PackageMojo}.
+	 */
+	@Parameter(property = "e3.singlePass", defaultValue = "false")
+	private boolean singlePass;
+
+	/**
+	 * Where the content of the embedded jar that is not extracted is recorded,
+	 * see {@link EmbeddedPlan}.
+	 */
+	@Parameter(defaultValue = "${project.build.directory}/e3-embedded.plan", readonly = true)
+	private File planFile;
+
+	/**
+	 * Whether to create one embedded jar per classifier of the products, e.g.
+	 * per platform, instead of one for all of them. Like {@link #singlePass},
+	 * nothing is extracted, and each jar also contains the output directory.
+	 * Bundles that are the same in several products are recorded and hashed
+	 * once, and all jars take them from the same product. A different bundle
+	 * with the name of one of another classifier is put into
+	 * {@code plugins/<classifier>/}.
+	 * Requires an execution of {@code package-embedded}, see
+	 * {@link PackageMojo}.
+	 */
+	@Parameter(property = "e3.perClassifier", defaultValue = "false")
+	private boolean perClassifier;
+
+	/**
+	 * Where the content of the jars that is specific to a classifier is written
+	 * with {@link #perClassifier}, in a directory and an {@link EmbeddedPlan}
+	 * per classifier.
+	 */
+	@Parameter(defaultValue = "${project.build.directory}/e3-embedded", readonly = true)
+	private File classifiersDirectory;
+
+	/**
+	 * Whether to leave out the bundles that are not needed by the autostart
+	 * bundles, the framework extensions, the bundles that declare the
+	 * application or the product in their {@code plugin.xml}, or the bundles in
+	 * {@link #keepBundles}. A bundle is needed if it provides a package, bundle
+	 * or capability that a needed bundle requires, or if it is a fragment of a
+	 * needed bundle, see {@link BundleIndex}.
+	 */
+	@Parameter(property = "e3.prune", defaultValue = "false")
+	private boolean prune;
+
+	/**
+	 * The symbolic names of bundles that are never pruned, e.g. bundles that
+	 * only contribute extensions. {@code *} matches any characters.
+	 */
+	@Parameter
+	private List<String> keepBundles;
+
+	/**
+	 * Where the pruned bundles are listed. With {@link #perClassifier}, the
+	 * classifier is appended to the name.
+	 */
+	@Parameter(defaultValue = "${project.build.directory}/e3-pruned.txt", readonly = true)
+	private File pruneReport;
+
 	@Component
 	private RepositorySystem repositorySystem;
 
 	@Component
 	private ResolutionErrorHandler resolutionErrorHandler;
 
-	MessageDigest digest;
-	ByteBuffer digestBuffer = ByteBuffer.allocateDirect(32 * 1024);
-	{
-		try {
-			digest = MessageDigest.getInstance("SHA1");
-		} catch (NoSuchAlgorithmException e) {
-			throw new RuntimeException(e);
-		}
-	}
+	private final ContentIndex contents = new ContentIndex();
 
-	synchronized byte[] digest(Path p) {
-		digest.reset();
+	private BundleCache cache;
 
-		try {
-			FileChannel fileChannel = FileChannel.open(p);
+	/**
+	 * The ids of the applications and products declared by the bundles, which
+	 * are the same for all jars.
+	 */
+	private final Map<Path, Set<String>> declaredIds = new HashMap<>();
 
-			for (;;) {
-				int read = fileChannel.read(digestBuffer);
-				if (read == -1)
-					break;
+	/**
+	 * The bundles copied by the last run, that have not been used by this run
+	 * yet.
+	 */
+	private final Set<Path> previousPlugins = new HashSet<>();
 
-				digestBuffer.flip();
-				digest.update(digestBuffer);
-				digestBuffer.clear();
-			}
-		} catch (IOException e) {
-			throw new RuntimeException("Failed to digest " + p, e);
-		}
-		return digest.digest();
-	}
-
-	private static class FileInfo {
-		Path p;
-		long size;
-		byte[] sha1sum;
-	}
-
-	private List<FileInfo> files = new ArrayList<>();
-
-	private void register(Path p) throws IOException {
-		if (files.stream().anyMatch(p1 -> p1.p.equals(p)))
-			throw new IllegalArgumentException();
-		FileInfo fi = new FileInfo();
-		fi.p = p;
-		fi.size = Files.size(p);
-		files.add(fi);
-	}
+	/**
+	 * The bundles to copy to {@code plugins/} and their sources.
+	 */
+	private final Map<Path, Path> copies = new LinkedHashMap<>();
 
-	private Path find(Path p) throws IOException {
-		long size = Files.size(p);
-
-		List<FileInfo> sizeMatch = files.stream().filter(p1 -> p1.size == size).collect(Collectors.toList());
-		if (sizeMatch.isEmpty())
-			return null;
-
-		byte[] file = digest(p);
-
-		FileInfo fi = sizeMatch.stream().filter(p1 -> {
-			if (p1.sha1sum == null)
-				p1.sha1sum = digest(p1.p);
-			return Arrays.equals(p1.sha1sum, file);
-		}).findAny().orElse(null);
-		return fi != null ? fi.p : null;
-	}
-
-	private void addBundle(Path p, Integer startLevel, Boolean start) throws IOException {
-		Path path = find(p);
+	private void addBundle(Output output, Path p, Integer startLevel, Boolean start) throws IOException {
+		Path path = contents.find(p);
 
 		if (path == null) {
-			Path dest = classesDir.toPath().resolve("plugins").resolve(p.getFileName().toString());
+			Path plugins = classesDir.toPath().resolve("plugins");
+			Path dest = plugins.resolve(p.getFileName().toString());
+			if (previousPlugins.remove(dest)) {
+				// left over from the last run with a different content
+				contents.remove(dest);
+				Files.deleteIfExists(dest);
+			}
+			// another bundle of the same name is in the products of another
+			// classifier, or in the output directory that is in all jars
+			if (output.classifier != null && (copies.containsKey(dest) || Files.exists(dest)))
+				dest = plugins.resolve(output.classifier).resolve(p.getFileName().toString());
 			if (Files.exists(dest))
 				throw new Error("Duplicate: " + dest);
-			if (!Files.isDirectory(dest.getParent()))
-				Files.createDirectories(dest.getParent());
-			Files.copy(p, dest);
-			register(dest);
+			if (copies.putIfAbsent(dest, p) != null)
+				throw new Error("Duplicate: " + dest);
+			contents.register(dest, p);
 			path = dest;
 		}
 
-		URI relPath = URI.create(classesDir.toPath().relativize(path).toString().replace(File.separatorChar, '/'));
+		previousPlugins.remove(path);
 
-		List<BundleSpec> existing = bundles.stream().filter(bs -> bs.relPath.equals(relPath))
+		URI relPath = URI.create(getName(path));
+
+		List<BundleSpec> existing = output.bundles.stream().filter(bs -> bs.relPath.equals(relPath))
 				.collect(Collectors.toList());
 
 		switch (existing.size()) {
@@ -188,7 +276,7 @@ public class EmbedMojo extends AbstractMojo {
 			bs.relPath = relPath;
 			bs.startLevel = startLevel;
 			bs.start = start;
-			bundles.add(bs);
+			output.bundles.add(bs);
 			break;
 		case 1:
 			bs = existing.get(0);
@@ -202,8 +290,6 @@ public class EmbedMojo extends AbstractMojo {
 		}
 	}
 
-	List<BundleSpec> bundles = new ArrayList<>();
-
 	public static void main(String[] args) throws URISyntaxException {
 		Path p = Paths.get("c:/temp/");
 		Path p1 = Paths.get("c:/temp/a/b");
@@ -219,6 +305,342 @@ public class EmbedMojo extends AbstractMojo {
 		Boolean start;
 	}
 
+	/**
+	 * An embedded jar and the products merged into it. Its names in
+	 * {@code plugins/} are relative to the output directory, which is shared by
+	 * all jars.
+	 */
+	static class Output {
+		/**
+		 * The classifier of the products, or {@code null} if all products are
+		 * merged into one jar.
+		 */
+		final String classifier;
+		/**
+		 * Where the files generated for the jar are written.
+		 */
+		final Path directory;
+		/**
+		 * Where the content of the jar that is not written to
+		 * {@link #directory} is recorded, or {@code null} if all of it is.
+		 */
+		final Path planFile;
+		final List<Product> products = new ArrayList<>();
+		final List<BundleSpec> bundles = new ArrayList<>();
+		final EmbeddedPlan plan = new EmbeddedPlan();
+
+		Output(String classifier, Path directory, Path planFile) {
+			this.classifier = classifier;
+			this.directory = directory;
+			this.planFile = planFile;
+		}
+
+		/**
+		 * @return {@code true} if the files written by the {@code previous} run
+		 *         still exist
+		 */
+		boolean isComplete(BuildState previous) {
+			if (!Files.isRegularFile(directory.resolve(JarFile.MANIFEST_NAME))
+					|| !Files.isRegularFile(directory.resolve("launcher.properties"))
+					|| !Files.isRegularFile(directory.resolve("bundles.index")))
+				return false;
+			if (planFile != null)
+				return Files.isRegularFile(planFile);
+
+			// the bundles and the framework are extracted, not planned
+			return allExist(directory, previous.getPlugins()) && allExist(directory, previous.getExtracted());
+		}
+	}
+
+	/**
+	 * What a product contributes to the embedded jar. Products are analyzed
+	 * concurrently and then merged in the order of their artifacts, so the
+	 * result does not depend on the order in which the analyses finish.
+	 */
+	static class Product {
+		Artifact artifact;
+		FileSystem fs;
+		Path ini;
+		final List<Map.Entry<String, String>> systemProperties = new ArrayList<>();
+		final Map<String, String> frameworkProperties = new TreeMap<>();
+		final Map<String, Path> configurationFiles = new TreeMap<>();
+		String framework;
+		final List<BundleRef> bundles = new ArrayList<>();
+	}
+
+	static class BundleRef {
+		final Path path;
+		final Integer startLevel;
+		final Boolean start;
+
+		BundleRef(Path path, Integer startLevel, Boolean start) {
+			this.path = path;
+			this.startLevel = startLevel;
+			this.start = start;
+		}
+	}
+
+	private static final Pattern BUNDLE_SPEC = Pattern
+			.compile("reference:file:(?<file>.+)@(?<runLevel>\\d)+(?<start>:start)?");
+
+	private static final Pattern EXTENSION_SPEC = Pattern.compile("reference:file:(?<file>.+)");
+
+	private static final Pattern SIGNATURE = Pattern.compile("META-INF/[^/]+[.]SF");
+
+	/**
+	 * The extension points of the applications and products, whose extensions
+	 * make a bundle needed when pruning.
+	 */
+	private static final Set<String> ROOT_EXTENSION_POINTS = new HashSet<>(
+			Arrays.asList("org.eclipse.core.runtime.applications", "org.eclipse.core.runtime.products"));
+
+	/**
+	 * Read the {@code eclipse.ini}, the configuration and the bundle lists of a
+	 * product. The file system of the product is left open for copying the
+	 * bundles.
+	 */
+	private Product analyze(Artifact a) throws IOException, MojoExecutionException {
+		Product product = new Product();
+		product.artifact = a;
+		product.fs = FileSystems.newFileSystem(a.getFile().toPath(), null);
+		try {
+			analyze(product);
+		} catch (IOException | MojoExecutionException | RuntimeException e) {
+			product.fs.close();
+			throw e;
+		}
+		return product;
+	}
+
+	private void analyze(Product product) throws IOException, MojoExecutionException {
+		FileSystem fs = product.fs;
+
+		List<Path> inis = new LinkedList<>();
+
+		for (Path p1 : fs.getRootDirectories()) {
+			try (Stream<Path> files = Files.list(p1)) {
+				files.forEach((p2) -> {
+					if (p2.getFileName().toString().endsWith(".ini"))
+						inis.add(p2);
+				});
+			}
+		}
+
+		Path ini;
+		switch (inis.size()) {
+		case 0:
+			ini = null;
+			break;
+		case 1:
+			ini = inis.iterator().next();
+			if (!ini.getFileName().toString().equals("eclipse.ini"))
+				getLog().info("Using '" + ini.getFileName() + "' as eclipse.ini");
+			break;
+		default:
+			Optional<Path> oini = inis.stream().filter(p1 -> p1.getFileName().toString().equals("eclipse.ini"))
+					.findAny();
+			if (oini.isPresent()) {
+				ini = oini.get();
+			} else {
+				ini = null;
+				getLog().warn("Multiple candidates for eclipse.ini found, using neither of them");
+			}
+			break;
+		}
+
+		product.ini = ini;
+		if (ini != null)
+			try (BufferedReader br = Files.newBufferedReader(ini)) {
+				boolean inVmargs = false;
+				for (String s = br.readLine(); s != null; s = br.readLine()) {
+					if (s.equals("-vmargs")) {
+						inVmargs = true;
+					} else if (inVmargs) {
+						if (s.startsWith("-D")) {
+							int idx = s.indexOf("=");
+							product.systemProperties
+									.add(new SimpleImmutableEntry<>(s.substring(2, idx), s.substring(idx + 1)));
+						}
+					}
+				}
+			}
+
+		Properties configIni = new Properties();
+
+		Path configuration = fs.getPath("/configuration");
+		Files.walkFileTree(configuration, new SimpleFileVisitor<Path>() {
+
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				Path rel = configuration.relativize(file);
+
+				switch (rel.toString()) {
+				case "config.ini":
+					try (InputStream in = Files.newInputStream(fs.getPath("configuration", "config.ini"))) {
+						configIni.load(in);
+					}
+					break;
+				case "org.eclipse.update/platform.xml":
+					product.configurationFiles.put(rel.toString(), file);
+					break;
+				case "org.eclipse.equinox.simpleconfigurator/bundles.info":
+					break;
+				default:
+					// FIXME: remove later
+					System.err.println("UNHANDLED CONFIGURATION FILE " + rel);
+					break;
+				}
+
+				return super.visitFile(file, attrs);
+			};
+		});
+
+		String bundles = null;
+		String frameworkExtensions = "";
+		URI simpleConfigurator = null;
+
+		for (Map.Entry<Object, Object> e : configIni.entrySet()) {
+			String key = (String) e.getKey();
+			String value = (String) e.getValue();
+
+			switch (key) {
+			case "osgi.bundles":
+				bundles = value;
+				break;
+			case "osgi.framework":
+				product.framework = value;
+				break;
+			case "osgi.framework.extensions":
+				frameworkExtensions = value;
+				break;
+			case "org.eclipse.equinox.simpleconfigurator.configUrl":
+				simpleConfigurator = URI.create(value);
+				break;
+			default:
+				product.frameworkProperties.put(key, value);
+				break;
+			}
+		}
+
+		if (product.framework == null)
+			throw new MojoExecutionException("Missing property 'osgi.framework' in config.ini");
+
+		if (bundles == null)
+			throw new MojoExecutionException("Missing property 'osgi.bundles' in config.ini");
+
+		URI frameworkUri = URI.create(product.framework);
+
+		for (String spec : bundles.split(",", -1)) {
+			Matcher m = BUNDLE_SPEC.matcher(spec);
+			if (!m.matches())
+				throw new MojoExecutionException("Unhandled specification: " + spec);
+
+			Path plugin = fs.getPath("plugins", m.group("file"));
+			if (Files.isDirectory(plugin)) {
+				getLog().error("Not supported: directory: " + spec);
+			} else {
+				product.bundles.add(
+						new BundleRef(plugin, Integer.valueOf(m.group("runLevel")), m.group("start") != null));
+			}
+		}
+
+		if (!frameworkExtensions.isEmpty())
+			for (String spec : frameworkExtensions.split(",", -1)) {
+				Matcher m = EXTENSION_SPEC.matcher(spec);
+				if (!m.matches())
+					throw new MojoExecutionException("Unhandled specification: " + spec);
+
+				Path plugin = fs.getPath("plugins", m.group("file"));
+				if (Files.isDirectory(plugin)) {
+					getLog().error("Not supported: directory: " + spec);
+				} else {
+					product.bundles.add(new BundleRef(plugin, null, null));
+				}
+			}
+
+		if (simpleConfigurator != null) {
+			try (BufferedReader r = Files.newBufferedReader(
+					fs.getPath("configuration", simpleConfigurator.getSchemeSpecificPart()), StandardCharsets.UTF_8)) {
+
+				for (String line = r.readLine(); line != null; line = r.readLine()) {
+					// javax.inject,1.0.0.v20091030,plugins/javax.inject_1.0.0.v20091030.jar,4,false
+
+					if (line.startsWith("#encoding=")) {
+						if (!line.equals("#encoding=UTF-8"))
+							throw new MojoExecutionException("Only UTF-8 supported");
+					} else if (line.startsWith("#version=")) {
+						if (!line.equals("#version=1"))
+							throw new MojoExecutionException("Only version 1 supported");
+					} else if (line.startsWith("#")) {
+						getLog().error("Not supported: " + line);
+					} else {
+						String[] s = line.split(",");
+						if (s[2].equals(frameworkUri.getSchemeSpecificPart()))
+							continue;
+
+						if (s.length != 5)
+							throw new MojoExecutionException("Not supported: " + line);
+						if (!s[2].startsWith("plugins/"))
+							throw new MojoExecutionException("Not supported: " + s[2]);
+
+						Path plugin = fs.getPath(s[2]);
+						if (Files.isDirectory(plugin)) {
+							getLog().error("Not supported: directory: " + line);
+							continue;
+						} else {
+							boolean start;
+							switch (s[4]) {
+							case "true":
+								start = true;
+								break;
+							case "false":
+								start = false;
+								break;
+							default:
+								throw new MojoExecutionException("Not supported: " + line);
+							}
+
+							product.bundles.add(new BundleRef(plugin, Integer.valueOf(s[3]), start));
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Run {@code tasks} concurrently and wait for all of them. The results of
+	 * the tasks that succeeded are added to {@code results} in the order of the
+	 * tasks, then the failure of the first task that failed is thrown.
+	 */
+	private static <T> void invokeAll(List<Callable<T>> tasks, List<T> results)
+			throws IOException, MojoExecutionException, MavenExecutionException {
+		Throwable failure = null;
+		for (Future<T> f : ForkJoinPool.commonPool().invokeAll(tasks)) {
+			try {
+				results.add(f.get());
+			} catch (ExecutionException e) {
+				if (failure == null)
+					failure = e.getCause();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new MojoExecutionException("Interrupted", e);
+			}
+		}
+
+		if (failure instanceof IOException)
+			throw (IOException) failure;
+		if (failure instanceof MojoExecutionException)
+			throw (MojoExecutionException) failure;
+		if (failure instanceof MavenExecutionException)
+			throw (MavenExecutionException) failure;
+		if (failure instanceof RuntimeException)
+			throw (RuntimeException) failure;
+		if (failure instanceof Error)
+			throw (Error) failure;
+		if (failure != null)
+			throw new MojoExecutionException("failed", failure);
+	}
+
 	public void execute() throws MojoExecutionException, MojoFailureException {
 
 		if (false) {
@@ -265,330 +687,668 @@ public class EmbedMojo extends AbstractMojo {
 				}
 			});
 
+			boolean extract = !singlePass && !perClassifier;
+			if (!extract && !hasPackageEmbedded())
+				throw new MojoExecutionException((perClassifier ? "e3.perClassifier" : "e3.singlePass")
+						+ " requires an execution of the package-embedded goal, see its documentation");
+
+			BuildState previous = BuildState.read(stateFile.toPath());
+			BuildState state = new BuildState();
+			state.putInputs(mojoExecution.getVersion(),
+					perClassifier ? "perClassifier" : singlePass ? "singlePass" : "extract", launcherConfiguration);
+			state.putLauncher(resolveLauncher(), previous);
+			state.putOption("prune", Boolean.toString(prune));
+			state.putOption("keepBundles", keepBundles != null ? String.join(",", keepBundles) : "");
+			for (Artifact a : directDependencies)
+				state.putArtifact(a, previous);
+
+			List<Artifact> artifacts = new ArrayList<>(directDependencies);
+			artifacts.sort(Comparator.comparing(BuildState::getKey));
+
+			Map<String, Output> outputs = new TreeMap<>();
+			if (perClassifier) {
+				for (Artifact a : artifacts) {
+					if (a.getClassifier() == null || a.getClassifier().isEmpty())
+						throw new MojoExecutionException("Dependency " + BuildState.getKey(a) + " has no classifier");
+					outputs.computeIfAbsent(a.getClassifier(),
+							c -> new Output(c, classifiersDirectory.toPath().resolve(c),
+									classifiersDirectory.toPath().resolve(c + ".plan")));
+				}
+			} else {
+				outputs.put("", new Output(null, classesDir.toPath(), singlePass ? planFile.toPath() : null));
+			}
+
+			if (state.hasSameInputs(previous) && outputs.values().stream().allMatch(o -> o.isComplete(previous))) {
+				getLog().info("Inputs unchanged since the last run, nothing to do");
+				return;
+			}
+
+			// a run that fails from here on leaves outputs that do not match any state
+			Files.deleteIfExists(stateFile.toPath());
+			Files.deleteIfExists(planFile.toPath());
+			deleteRecursively(classifiersDirectory.toPath());
+
+			if (bundleCache && extract)
+				cache = new BundleCache(bundleCacheDirectory.toPath(), bundleCacheMaxSize * 1024 * 1024, getLog());
+
+			for (String plugin : previous.getPlugins())
+				previousPlugins.add(classesDir.toPath().resolve(plugin));
+
+			if (perClassifier) {
+				// written by a run in another mode, but the output directory is in
+				// all jars and the jars per classifier have their own
+				for (Path p : previousPlugins)
+					Files.deleteIfExists(p);
+				previousPlugins.clear();
+				Files.deleteIfExists(classesDir.toPath().resolve("launcher.properties"));
+				Files.deleteIfExists(classesDir.toPath().resolve("bundles.index"));
+				Files.deleteIfExists(manifestPath.toPath());
+				deleteRecursively(classesDir.toPath().resolve(".configuration"));
+			}
+
 			if (Files.isDirectory(classesDir.toPath()))
 				for (Path p : Files.walk(classesDir.toPath()).filter(Files::isRegularFile).collect(Collectors.toList()))
-					register(p);
+					contents.register(p);
 
-			String framework0 = null;
+			List<Product> products = new ArrayList<>();
+			try {
+				invokeAll(artifacts.stream().map(a -> (Callable<Product>) () -> analyze(a)).collect(Collectors.toList()),
+						products);
 
-			Properties launcherProperties = new Properties();
-			Set<String> configurationCopy = new HashSet<>();
+				for (Product product : products)
+					outputs.get(perClassifier ? product.artifact.getClassifier() : "").products.add(product);
 
-			for (Artifact a : directDependencies) {
+				String framework0 = null;
+				Path frameworkJar = null;
+				Product frameworkProduct = null;
 
-				try (FileSystem fs = FileSystems.newFileSystem(a.getFile().toPath(), null)) {
+				Map<Output, Properties> launcherProperties = new LinkedHashMap<>();
 
-					List<Path> inis = new LinkedList<>();
+				for (Output output : outputs.values()) {
+					Properties properties = new Properties();
+					Set<String> configurationCopy = new LinkedHashSet<>();
 
-					for (Path p1 : fs.getRootDirectories()) {
-						Files.list(p1).forEach((p2) -> {
-							if (p2.getFileName().toString().endsWith(".ini"))
-								inis.add(p2);
-						});
-					}
+					for (Product product : output.products) {
+						for (Map.Entry<String, String> e : product.systemProperties) {
+							Object old = properties.put("system." + e.getKey(), e.getValue());
+							if (old != null && !Objects.equals(old, e.getValue()))
+								throw new MojoFailureException("System property '" + e.getKey() + "' in "
+										+ product.ini.getFileName() + " has different values in different artifacts: '"
+										+ old + "', '" + e.getValue() + "'");
+						}
 
-					Path ini;
-					switch (inis.size()) {
-					case 0:
-						ini = null;
-						break;
-					case 1:
-						ini = inis.iterator().next();
-						if (!ini.getFileName().toString().equals("eclipse.ini"))
-							getLog().info("Using '" + ini.getFileName() + "' as eclipse.ini");
-						break;
-					default:
-						Optional<Path> oini = inis.stream()
-								.filter(p1 -> p1.getFileName().toString().equals("eclipse.ini")).findAny();
-						if (oini.isPresent()) {
-							ini = oini.get();
-						} else {
-							ini = null;
-							getLog().warn("Multiple candidates for eclipse.ini found, using neither of them");
+						for (Map.Entry<String, String> e : product.frameworkProperties.entrySet()) {
+							Object old = properties.put("framework." + e.getKey(), e.getValue());
+							if (old != null && !Objects.equals(old, e.getValue()))
+								throw new MojoFailureException("Property '" + e.getKey()
+										+ "' in config.ini has different values in different artifacts: '" + old
+										+ "', '" + e.getValue() + "'");
 						}
-						break;
-					}
 
-					if (ini != null)
-						try (BufferedReader br = Files.newBufferedReader(ini)) {
-							boolean inVmargs = false;
-							for (String s = br.readLine(); s != null; s = br.readLine()) {
-								if (s.equals("-vmargs")) {
-									inVmargs = true;
-								} else if (inVmargs) {
-									if (s.startsWith("-D")) {
-										int idx = s.indexOf("=");
-										String key = s.substring(2, idx);
-										String value = s.substring(idx + 1);
-										Object old = launcherProperties.put("system." + key, value);
-										if (old != null && !Objects.equals(old, value))
-											throw new MojoFailureException(
-													"System property '" + key + "' in " + ini.getFileName()
-															+ " has different values in different artifacts: '" + old
-															+ "', '" + value + "'");
-									}
-								}
+						// org.eclipse.update/platform.xml differs, but the differences should not be
+						// relevant. If other files are copied, they must be merged here.
+						for (Map.Entry<String, Path> e : product.configurationFiles.entrySet())
+							if (configurationCopy.add(e.getKey())) {
+								Path target = output.directory.resolve(".configuration").resolve(e.getKey());
+								Files.createDirectories(target.getParent());
+								Files.copy(e.getValue(), target, StandardCopyOption.REPLACE_EXISTING);
 							}
-						}
 
-					Properties configIni = new Properties();
+						if (framework0 == null) {
+							framework0 = product.framework;
 
-					Path configuration = fs.getPath("/configuration");
-					Files.walkFileTree(configuration, new SimpleFileVisitor<Path>() {
+							URI frameworkUri = URI.create(product.framework);
+							if (!frameworkUri.getScheme().equals("file"))
+								throw new MojoExecutionException(
+										"Framework URI must have \"file\" scheme: '" + frameworkUri + "'");
 
-						public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-							Path rel = configuration.relativize(file);
+							state.putFramework(product.artifact, product.framework);
+							if (extract && state.hasSameFramework(previous) && manifestPath.isFile()
+									&& allExist(classesDir.toPath(), previous.getExtracted())) {
+								getLog().debug("Framework unchanged since the last run, not extracting it");
+								state.putExtracted(previous.getExtracted());
+							} else {
+								// otherwise they would be packaged instead of the ones in the plan
+								deleteExtracted(previous);
+								frameworkJar = product.fs.getPath(frameworkUri.getSchemeSpecificPart());
+							}
+							frameworkProduct = product;
+						} else if (!framework0.equals(product.framework)) {
+							throw new Error();
+						}
 
-							boolean copy = false;
+						for (BundleRef b : product.bundles)
+							addBundle(output, b.path, b.startLevel, b.start);
+					}
 
-							switch (rel.toString()) {
-							case "config.ini":
-								try (InputStream in = Files.newInputStream(fs.getPath("configuration", "config.ini"))) {
-									configIni.load(in);
-								}
-								break;
-							case "org.eclipse.update/platform.xml":
-								copy = true;
-								break;
-							case "org.eclipse.equinox.simpleconfigurator/bundles.info":
-								break;
-							default:
-								// FIXME: remove later
-								System.err.println("UNHANDLED CONFIGURATION FILE " + rel);
-								break;
-							}
+					properties.put("configuration.copy", configurationCopy.stream().collect(Collectors.joining(",")));
+					launcherProperties.put(output, properties);
+				}
 
-							if (copy) {
-								Path target = classesDir.toPath().resolve(".configuration").resolve(rel.toString());
-								// org.eclipse.update/platform.xml differs, but the differences should not be
-								// relevant. If other files are copied, they must be merged here.
-								if (!Files.exists(target)) {
-									Files.createDirectories(target.getParent());
-									Files.copy(file, target);
+				Map<Output, Properties> indexes = new LinkedHashMap<>();
+				for (Output output : outputs.values()) {
+					// bundles that are not copied yet are read from the products
+					Properties index = createBundleIndex(output.bundles);
+					if (prune)
+						prune(output, index, launcherProperties.get(output));
+					indexes.put(output, index);
+				}
 
-									configurationCopy.add(rel.toString());
-								}
-							}
+				if (prune) {
+					Set<Path> used = new HashSet<>();
+					for (Output output : outputs.values())
+						for (BundleSpec bs : output.bundles)
+							used.add(classesDir.toPath().resolve(bs.relPath.getPath()));
+					for (Path p : new ArrayList<>(copies.keySet()))
+						if (!used.contains(p))
+							copies.remove(p);
+					// pruned bundles left over from the last run
+					for (String plugin : previous.getPlugins()) {
+						Path p = classesDir.toPath().resolve(plugin);
+						if (!used.contains(p))
+							previousPlugins.add(p);
+					}
+				}
 
-							return super.visitFile(file, attrs);
-						};
-					});
-
-					String framework = null;
-					String bundles = null;
-					String frameworkExtensions = "";
-					URI simpleConfigurator = null;
-
-					for (Map.Entry<Object, Object> e : configIni.entrySet()) {
-						String key = (String) e.getKey();
-						String value = (String) e.getValue();
-
-						boolean passThrough = true;
-
-						switch (key) {
-						case "osgi.bundles":
-							bundles = value;
-							passThrough = false;
-							break;
-						case "osgi.framework":
-							framework = value;
-							passThrough = false;
-							break;
-						case "osgi.framework.extensions":
-							frameworkExtensions = value;
-							passThrough = false;
-							break;
-						case "org.eclipse.equinox.simpleconfigurator.configUrl":
-							simpleConfigurator = URI.create(value);
-							passThrough = false;
-							break;
+				if (extract) {
+					List<Callable<Void>> extractions = new ArrayList<>();
+					if (frameworkJar != null) {
+						Path jar = frameworkJar;
+						extractions.add(() -> {
+							state.putExtracted(extractFramework(jar));
+							return null;
+						});
+					}
+					if (!copies.isEmpty())
+						Files.createDirectories(classesDir.toPath().resolve("plugins"));
+					for (Map.Entry<Path, Path> e : copies.entrySet())
+						extractions.add(() -> {
+							if (cache != null)
+								cache.link(e.getValue(), contents.getSha1(e.getValue()), e.getKey());
+							else
+								Files.copy(e.getValue(), e.getKey());
+							return null;
+						});
+					invokeAll(extractions, new ArrayList<>());
+				} else {
+					Map<FileSystem, Path> zips = new HashMap<>();
+					for (Product product : products)
+						zips.put(product.fs, product.artifact.getFile().toPath());
+
+					for (Output output : outputs.values()) {
+						if (frameworkProduct != null)
+							planFramework(frameworkProduct, frameworkJar, output);
+
+						for (BundleSpec bs : output.bundles) {
+							Path source = copies.get(classesDir.toPath().resolve(bs.relPath.getPath()));
+							// otherwise it is in the output directory already
+							if (source != null)
+								output.plan.bundles.add(new EmbeddedPlan.Bundle(bs.relPath.toString(),
+										zips.get(source.getFileSystem()), getEntryName(source)));
 						}
+					}
+				}
 
-						if (passThrough) {
-							Object old = launcherProperties.put("framework." + key, value);
-							if (old != null && !Objects.equals(old, value))
-								throw new MojoFailureException("Property '" + key
-										+ "' in config.ini has different values in different artifacts: '" + old
-										+ "', '" + value + "'");
-						}
+				for (Output output : outputs.values()) {
+					try (OutputStream out = Files.newOutputStream(output.directory.resolve("bundles.index"))) {
+						indexes.get(output).store(out, "");
 					}
 
-					if (framework == null)
-						throw new MojoExecutionException("Missing property 'osgi.framework' in config.ini");
-
-					if (bundles == null)
-						throw new MojoExecutionException("Missing property 'osgi.bundles' in config.ini");
-
-					URI frameworkUri = URI.create(framework);
-
-					if (framework0 == null) {
-						framework0 = framework;
-
-						if (!frameworkUri.getScheme().equals("file"))
-							throw new MojoExecutionException(
-									"Framework URI must have \"file\" scheme: '" + frameworkUri + "'");
-
-						Manifest manifest = null;
-
-						Path p1 = fs.getPath(frameworkUri.getSchemeSpecificPart());
-						try (InputStream in = Files.newInputStream(p1); ZipInputStream zis = new ZipInputStream(in)) {
-							ZipEntry entry;
-							while ((entry = zis.getNextEntry()) != null) {
-								String name = entry.getName();
-								if (name.equals("META-INF/MANIFEST.MF")) {
-									if (manifest != null)
-										throw new MojoExecutionException("Duplicate manifest in " + p1);
-									manifest = new Manifest(zis);
-								} else if (entry.isDirectory()) {
-									continue;
-								} else if (name.matches("META-INF/[^/]+[.]SF")) {
-									// remove signature information as it
-									// becomes
-									// invalid by re-packaging
-									continue;
-								} else if (!entry.isDirectory()) {
-									Path path = classesDir.toPath().resolve(entry.getName());
-									Files.createDirectories(path.getParent());
-									Files.copy(zis, path);
-								}
-							}
-						}
+					Properties properties = launcherProperties.get(output);
+					properties.put("osgi.bundles", output.bundles.stream().map(bs -> {
+						String s = bs.relPath + "@" + (bs.startLevel != null ? bs.startLevel : "0");
+						if (bs.start != null && bs.start)
+							s += ":start";
+						return s;
+					}).collect(Collectors.joining(",")));
 
-						manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, E3Main.class.getName());
-
-						// remove signature information as it becomes invalid by
-						// re-packaging
-						manifest.getEntries().clear();
-
-						// add launcher
-						Artifact launcher = resolveDependency(repositorySystem.createArtifact("com.github.pms1.e3",
-								"e3-launcher", mojoExecution.getVersion(), "jar"));
-						try (InputStream in = Files.newInputStream(launcher.getFile().toPath());
-								ZipInputStream zis = new ZipInputStream(in)) {
-							ZipEntry entry;
-							while ((entry = zis.getNextEntry()) != null) {
-								String name = entry.getName();
-								if (name.equals("META-INF/MANIFEST.MF")) {
-									continue;
-								} else if (entry.isDirectory()) {
-									continue;
-								} else if (name.matches("META-INF/[^/]+[.]SF")) {
-									// remove signature information as it
-									// becomes
-									// invalid by re-packaging
-									continue;
-								} else if (!entry.isDirectory()) {
-									Path path = classesDir.toPath().resolve(entry.getName());
-									Files.createDirectories(path.getParent());
-									Files.copy(zis, path);
-								}
-							}
-						}
+					if (launcherConfiguration != null)
+						for (Map.Entry<String, String> e : launcherConfiguration.entrySet())
+							properties.put("e3." + e.getKey(), e.getValue());
 
-						Files.createDirectories(manifestPath.toPath().getParent());
-						try (OutputStream out = Files.newOutputStream(manifestPath.toPath())) {
-							manifest.write(out);
-						}
-					} else if (!framework0.equals(framework)) {
-						throw new Error();
+					try (OutputStream out = Files.newOutputStream(output.directory.resolve("launcher.properties"))) {
+						properties.store(out, "");
 					}
+				}
+			} finally {
+				for (Product product : products)
+					product.fs.close();
+			}
 
-					for (String spec : bundles.split(",", -1)) {
-						Matcher m = Pattern.compile("reference:file:(?<file>.+)@(?<runLevel>\\d)+(?<start>:start)?")
-								.matcher(spec);
-						if (!m.matches())
-							throw new MojoExecutionException("Unhandled specification: " + spec);
+			for (Path p : previousPlugins)
+				Files.deleteIfExists(p);
 
-						Path plugin = fs.getPath("plugins", m.group("file"));
-						if (Files.isDirectory(plugin)) {
-							getLog().error("Not supported: directory: " + spec);
-						} else {
-							addBundle(plugin, Integer.valueOf(m.group("runLevel")), m.group("start") != null);
-						}
-					}
+			state.putPlugins(perClassifier ? Collections.emptyList()
+					: outputs.get("").bundles.stream().map(bs -> bs.relPath.toString())
+							.filter(p -> p.startsWith("plugins/")).collect(Collectors.toList()));
+			state.write(stateFile.toPath());
 
-					if (!frameworkExtensions.isEmpty())
-						for (String spec : frameworkExtensions.split(",", -1)) {
-							Matcher m = Pattern.compile("reference:file:(?<file>.+)").matcher(spec);
-							if (!m.matches())
-								throw new MojoExecutionException("Unhandled specification: " + spec);
+			for (Output output : outputs.values())
+				if (output.planFile != null)
+					output.plan.write(output.planFile);
 
-							Path plugin = fs.getPath("plugins", m.group("file"));
-							if (Files.isDirectory(plugin)) {
-								getLog().error("Not supported: directory: " + spec);
-							} else {
-								addBundle(plugin, null, null);
-							}
-						}
+			if (cache != null)
+				cache.evict();
 
-					if (simpleConfigurator != null) {
-						try (BufferedReader r = Files.newBufferedReader(
-								fs.getPath("configuration", simpleConfigurator.getSchemeSpecificPart()),
-								StandardCharsets.UTF_8)) {
-
-							for (String line = r.readLine(); line != null; line = r.readLine()) {
-								// javax.inject,1.0.0.v20091030,plugins/javax.inject_1.0.0.v20091030.jar,4,false
-
-								if (line.startsWith("#encoding=")) {
-									if (!line.equals("#encoding=UTF-8"))
-										throw new MojoExecutionException("Only UTF-8 supported");
-								} else if (line.startsWith("#version=")) {
-									if (!line.equals("#version=1"))
-										throw new MojoExecutionException("Only version 1 supported");
-								} else if (line.startsWith("#")) {
-									getLog().error("Not supported: " + line);
-								} else {
-									String[] s = line.split(",");
-									if (s[2].equals(frameworkUri.getSchemeSpecificPart()))
-										continue;
-
-									if (s.length != 5)
-										throw new MojoExecutionException("Not supported: " + line);
-									if (!s[2].startsWith("plugins/"))
-										throw new MojoExecutionException("Not supported: " + s[2]);
-
-									Path plugin = fs.getPath(s[2]);
-									if (Files.isDirectory(plugin)) {
-										getLog().error("Not supported: directory: " + line);
-										continue;
-									} else {
-										boolean start;
-										switch (s[4]) {
-										case "true":
-											start = true;
-											break;
-										case "false":
-											start = false;
-											break;
-										default:
-											throw new MojoExecutionException("Not supported: " + line);
-										}
-
-										addBundle(plugin, Integer.valueOf(s[3]), start);
-									}
-								}
-							}
-						}
-					}
+		} catch (DependencyGraphBuilderException | IOException | MavenExecutionException e) {
+			throw new MojoExecutionException("failed", e);
+		}
+
+	}
+
+	/**
+	 * Extract the framework and the launcher into the output directory, and
+	 * write the manifest of the embedded jar based on the one of the framework.
+	 *
+	 * @return the names of the extracted files
+	 */
+	private List<String> extractFramework(Path p1)
+			throws IOException, MojoExecutionException, MavenExecutionException {
+		Manifest manifest = null;
+		List<String> extracted = new ArrayList<>();
+
+		try (InputStream in = Files.newInputStream(p1); ZipInputStream zis = new ZipInputStream(in)) {
+			ZipEntry entry;
+			while ((entry = zis.getNextEntry()) != null) {
+				String name = entry.getName();
+				if (name.equals("META-INF/MANIFEST.MF")) {
+					if (manifest != null)
+						throw new MojoExecutionException("Duplicate manifest in " + p1);
+					manifest = new Manifest(zis);
+				} else if (entry.isDirectory()) {
+					continue;
+				} else if (SIGNATURE.matcher(name).matches()) {
+					// remove signature information as it
+					// becomes
+					// invalid by re-packaging
+					continue;
+				} else if (!entry.isDirectory()) {
+					Path path = classesDir.toPath().resolve(entry.getName());
+					Files.createDirectories(path.getParent());
+					Files.copy(zis, path, StandardCopyOption.REPLACE_EXISTING);
+					extracted.add(name);
+				}
+			}
+		}
+
+		if (manifest == null)
+			throw new MojoExecutionException("Missing manifest in " + p1);
+
+		// add launcher
+		try (InputStream in = Files.newInputStream(resolveLauncher().getFile().toPath());
+				ZipInputStream zis = new ZipInputStream(in)) {
+			ZipEntry entry;
+			while ((entry = zis.getNextEntry()) != null) {
+				String name = entry.getName();
+				if (name.equals("META-INF/MANIFEST.MF")) {
+					continue;
+				} else if (entry.isDirectory()) {
+					continue;
+				} else if (SIGNATURE.matcher(name).matches()) {
+					// remove signature information as it
+					// becomes
+					// invalid by re-packaging
+					continue;
+				} else if (!entry.isDirectory()) {
+					Path path = classesDir.toPath().resolve(entry.getName());
+					Files.createDirectories(path.getParent());
+					Files.copy(zis, path, StandardCopyOption.REPLACE_EXISTING);
+					extracted.add(name);
 				}
 			}
+		}
 
-			launcherProperties.put("osgi.bundles", this.bundles.stream().map(bs -> {
-				String s = bs.relPath + "@" + (bs.startLevel != null ? bs.startLevel : "0");
-				if (bs.start != null && bs.start)
-					s += ":start";
-				return s;
-			}).collect(Collectors.joining(",")));
+		writeManifest(manifest, manifestPath.toPath());
+
+		return extracted;
+	}
 
-			launcherProperties.put("configuration.copy", configurationCopy.stream().collect(Collectors.joining(",")));
-			try (OutputStream out = Files.newOutputStream(classesDir.toPath().resolve("launcher.properties"))) {
-				launcherProperties.store(out, "");
+	/**
+	 * Delete the files extracted from the framework and the launcher by the
+	 * last run, and the directories that are empty then.
+	 */
+	private void deleteExtracted(BuildState previous) throws IOException {
+		Set<Path> directories = new TreeSet<>(Comparator.reverseOrder());
+		for (String name : previous.getExtracted()) {
+			Path p = classesDir.toPath().resolve(name);
+			contents.remove(p);
+			Files.deleteIfExists(p);
+			for (Path d = p.getParent(); !d.equals(classesDir.toPath()); d = d.getParent())
+				directories.add(d);
+		}
+		for (Path d : directories)
+			try {
+				Files.deleteIfExists(d);
+			} catch (DirectoryNotEmptyException e) {
+				// contains other files
 			}
+	}
 
-		} catch (DependencyGraphBuilderException | IOException | MavenExecutionException e) {
-			throw new MojoExecutionException("failed", e);
+	/**
+	 * Like {@link #extractFramework(Path)}, but only record the framework and
+	 * the launcher in the plan of {@code output}. The manifest is written only
+	 * if {@code p1} is not {@code null}, i.e. if the framework changed.
+	 */
+	private void planFramework(Product product, Path p1, Output output)
+			throws IOException, MojoExecutionException, MavenExecutionException {
+		if (p1 != null) {
+			Manifest manifest = readManifest(p1);
+			if (manifest == null)
+				throw new MojoExecutionException("Missing manifest in " + p1);
+			writeManifest(manifest, output.directory.resolve(JarFile.MANIFEST_NAME));
+		}
+
+		Path framework = product.fs.getPath(URI.create(product.framework).getSchemeSpecificPart());
+		output.plan.jars.add(new EmbeddedPlan.Jar(product.artifact.getFile().toPath(), getEntryName(framework)));
+		output.plan.jars.add(new EmbeddedPlan.Jar(resolveLauncher().getFile().toPath(), null));
+	}
+
+	/**
+	 * @return whether {@code package-embedded} runs, which is not part of the
+	 *         lifecycle
+	 */
+	private boolean hasPackageEmbedded() {
+		Plugin plugin = project
+				.getPlugin(mojoExecution.getMojoDescriptor().getPluginDescriptor().getPluginLookupKey());
+		return plugin != null
+				&& plugin.getExecutions().stream().anyMatch(e -> e.getGoals().contains("package-embedded"));
+	}
+
+	private Artifact resolveLauncher() throws MavenExecutionException {
+		return resolveDependency(repositorySystem.createArtifact("com.github.pms1.e3", "e3-launcher",
+				mojoExecution.getVersion(), "jar"));
+	}
+
+	/**
+	 * Write the manifest of the embedded jar based on the one of the
+	 * framework.
+	 */
+	private static void writeManifest(Manifest manifest, Path file) throws IOException {
+		manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, E3Main.class.getName());
+
+		// remove signature information as it becomes invalid by
+		// re-packaging
+		manifest.getEntries().clear();
+
+		Files.createDirectories(file.getParent());
+		try (OutputStream out = Files.newOutputStream(file)) {
+			manifest.write(out);
+		}
+	}
+
+	/**
+	 * @return the manifest of the jar {@code p}, or {@code null}. {@code p} may
+	 *         be in the file system of a product.
+	 */
+	private static Manifest readManifest(Path p) throws IOException {
+		if (p.getFileSystem() == FileSystems.getDefault())
+			try (JarFile jar = new JarFile(p.toFile())) {
+				return jar.getManifest();
+			}
+
+		// usually one of the first entries
+		try (InputStream in = Files.newInputStream(p); ZipInputStream zis = new ZipInputStream(in)) {
+			for (ZipEntry entry; (entry = zis.getNextEntry()) != null;)
+				if (entry.getName().equals(JarFile.MANIFEST_NAME))
+					return new Manifest(zis);
+		}
+		return null;
+	}
+
+	/**
+	 * @return the name of {@code p} in the embedded jar
+	 */
+	private String getName(Path p) {
+		return classesDir.toPath().relativize(p).toString().replace(File.separatorChar, '/');
+	}
+
+	/**
+	 * @return the name of the entry of {@code p} in the zip file of its file
+	 *         system
+	 */
+	private static String getEntryName(Path p) {
+		String name = p.toAbsolutePath().toString();
+		return name.startsWith("/") ? name.substring(1) : name;
+	}
+
+	/**
+	 * Index the symbolic name, version, capabilities and requirements of the
+	 * bundles, and the application and product ids declared in their
+	 * {@code plugin.xml}, so that the launcher can determine the bundles needed by the
+	 * autostart bundles without reading their manifests. Only names are
+	 * recorded, e.g. versions and filters are dropped, so the launcher may pick
+	 * more bundles than the resolver will wire, but never less.
+	 */
+	private Properties createBundleIndex(List<BundleSpec> bundles) throws IOException {
+		Properties index = new Properties();
+
+		for (BundleSpec bs : bundles) {
+			Path path = classesDir.toPath().resolve(bs.relPath.getPath());
+			Manifest manifest = readManifest(copies.getOrDefault(path, path));
+			if (manifest == null)
+				continue;
+			Attributes attributes = manifest.getMainAttributes();
+
+			// not an OSGi R4 bundle, the launcher always installs it
+			if (!"2".equals(attributes.getValue("Bundle-ManifestVersion")))
+				continue;
+
+			String prefix = bs.relPath + ".";
+
+			for (ManifestHeader.Clause c : ManifestHeader.parse(attributes.getValue("Bundle-SymbolicName")))
+				index.put(prefix + "symbolicName", c.paths.get(0));
+			if (attributes.getValue("Bundle-Version") != null)
+				index.put(prefix + "version", attributes.getValue("Bundle-Version").trim());
+			for (ManifestHeader.Clause c : ManifestHeader.parse(attributes.getValue("Fragment-Host")))
+				index.put(prefix + "fragmentHost", c.paths.get(0));
+
+			Set<String> exports = new TreeSet<>();
+			for (ManifestHeader.Clause c : ManifestHeader.parse(attributes.getValue("Export-Package")))
+				exports.addAll(c.paths);
+
+			Set<String> imports = new TreeSet<>();
+			for (ManifestHeader.Clause c : ManifestHeader.parse(attributes.getValue("Import-Package")))
+				imports.addAll(c.paths);
+			for (ManifestHeader.Clause c : ManifestHeader.parse(attributes.getValue("DynamicImport-Package")))
+				for (String p : c.paths)
+					if (!p.contains("*"))
+						imports.add(p);
+
+			Set<String> requires = new TreeSet<>();
+			for (ManifestHeader.Clause c : ManifestHeader.parse(attributes.getValue("Require-Bundle")))
+				requires.addAll(c.paths);
+
+			Set<String> provides = new TreeSet<>();
+			for (ManifestHeader.Clause c : ManifestHeader.parse(attributes.getValue("Provide-Capability")))
+				for (String namespace : c.paths) {
+					String value = c.attributes.get(namespace);
+					if (value == null)
+						provides.add(namespace);
+					else
+						for (String v : value.split(","))
+							provides.add(namespace + "=" + v.trim());
+				}
+
+			Set<String> requiredCapabilities = new TreeSet<>();
+			for (ManifestHeader.Clause c : ManifestHeader.parse(attributes.getValue("Require-Capability"))) {
+				String effective = c.directives.get("effective");
+				if (effective != null && !effective.equals("resolve"))
+					continue;
+				String filter = c.directives.get("filter");
+				for (String namespace : c.paths) {
+					Matcher m = filter != null
+							? Pattern.compile("\\(" + Pattern.quote(namespace) + "=([^()*]+)\\)").matcher(filter)
+							: null;
+					if (m != null && m.find())
+						requiredCapabilities.add(namespace + "=" + m.group(1).trim());
+					else
+						requiredCapabilities.add(namespace);
+				}
+			}
+
+			putAll(index, prefix + "exports", exports);
+			putAll(index, prefix + "imports", imports);
+			putAll(index, prefix + "requires", requires);
+			putAll(index, prefix + "provides", provides);
+			putAll(index, prefix + "requiredCapabilities", requiredCapabilities);
+
+			// the launcher starts the bundles declaring the application and the
+			// product, the ids do not tell which bundles these are
+			String symbolicName = index.getProperty(prefix + "symbolicName");
+			if (symbolicName != null)
+				putAll(index, prefix + "declares", new TreeSet<>(getDeclaredIds(path, symbolicName)));
 		}
 
+		return index;
+	}
+
+	/**
+	 * Remove the bundles from {@code output} that are not needed, and list them
+	 * in the report.
+	 */
+	private void prune(Output output, Properties index, Properties launcherProperties) throws IOException {
+		BundleIndex bundleIndex = new BundleIndex(index);
+
+		List<Pattern> keep = new ArrayList<>();
+		if (keepBundles != null)
+			for (String k : keepBundles)
+				keep.add(Pattern.compile(Stream.of(k.trim().split("[*]", -1)).map(Pattern::quote)
+						.collect(Collectors.joining(".*"))));
+
+		// the bundles that declare the application and the product in their
+		// plugin.xml are needed, the ids do not tell which bundles these are
+		Set<String> ids = new TreeSet<>();
+		for (String key : new String[] { "eclipse.application", "eclipse.product" })
+			for (String prefix : new String[] { "framework.", "system.", "e3." })
+				if (launcherProperties.getProperty(prefix + key) != null)
+					ids.add(launcherProperties.getProperty(prefix + key));
+		if (launcherConfiguration != null)
+			for (String key : new String[] { "eclipse.application", "eclipse.product" })
+				if (launcherConfiguration.get(key) != null)
+					ids.add(launcherConfiguration.get(key));
+
+		List<String> files = new ArrayList<>();
+		List<String> roots = new ArrayList<>();
+		Set<String> declared = new HashSet<>();
+		for (BundleSpec bs : output.bundles) {
+			String file = bs.relPath.toString();
+			files.add(file);
+
+			String symbolicName = bundleIndex.getSymbolicName(file);
+			Set<String> declares = new HashSet<>(bundleIndex.getDeclaredIds(file));
+			declares.retainAll(ids);
+			declared.addAll(declares);
+
+			if (Boolean.TRUE.equals(bs.start) || bs.startLevel == null || bundleIndex.isRequired(file)
+					|| keep.stream().anyMatch(p -> p.matcher(symbolicName).matches()) || !declares.isEmpty())
+				roots.add(file);
+		}
+
+		for (String id : ids)
+			if (!declared.contains(id))
+				getLog().warn("No plugin.xml declares the application or product '" + id
+						+ "', add the bundles it needs to keepBundles");
+
+		Set<String> needed = new HashSet<>(bundleIndex.getClosure(files, roots));
+
+		List<BundleSpec> pruned = new ArrayList<>();
+		for (BundleSpec bs : output.bundles)
+			if (!needed.contains(bs.relPath.toString()))
+				pruned.add(bs);
+
+		Path report = pruneReport.toPath();
+		if (output.classifier != null) {
+			String name = report.getFileName().toString();
+			int idx = name.lastIndexOf('.');
+			report = report.resolveSibling(idx == -1 ? name + "-" + output.classifier
+					: name.substring(0, idx) + "-" + output.classifier + name.substring(idx));
+		}
+		Files.createDirectories(report.getParent());
+		try (BufferedWriter w = Files.newBufferedWriter(report, StandardCharsets.UTF_8)) {
+			w.write("# " + pruned.size() + " of " + files.size() + " bundles pruned\n");
+			for (BundleSpec bs : pruned) {
+				String symbolicName = bundleIndex.getSymbolicName(bs.relPath.toString());
+				w.write(bs.relPath + (symbolicName != null ? "\t" + symbolicName : "") + "\n");
+			}
+		}
+
+		output.bundles.removeAll(pruned);
+		for (BundleSpec bs : pruned) {
+			String prefix = bs.relPath + ".";
+			index.keySet().removeIf(k -> ((String) k).startsWith(prefix));
+		}
+
+		getLog().info("Pruned " + pruned.size() + " of " + files.size() + " bundles"
+				+ (output.classifier != null ? " for " + output.classifier : "") + ", see " + report);
+	}
+
+	/**
+	 * @return the ids of the applications and products declared in the
+	 *         {@code plugin.xml} of the bundle {@code p}
+	 */
+	private Set<String> getDeclaredIds(Path p, String symbolicName) throws IOException {
+		Set<String> result = declaredIds.get(p);
+		if (result == null) {
+			result = readDeclaredIds(copies.getOrDefault(p, p), symbolicName);
+			declaredIds.put(p, result);
+		}
+		return result;
+	}
+
+	private Set<String> readDeclaredIds(Path p, String symbolicName) throws IOException {
+		// p may be in the file system of a product
+		ZipReader.Entry pluginXml = null;
+		for (ZipReader.Entry e : new ZipReader(Files.readAllBytes(p), p.toString()).getEntries())
+			if (e.name.equals("plugin.xml"))
+				pluginXml = e;
+		if (pluginXml == null)
+			return Collections.emptySet();
+
+		Document document;
+		try (InputStream in = pluginXml.open()) {
+			DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+			factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+			DocumentBuilder builder = factory.newDocumentBuilder();
+			// report errors only by the exception, not on stderr
+			builder.setErrorHandler(new DefaultHandler());
+			document = builder.parse(in);
+		} catch (ParserConfigurationException | SAXException e) {
+			getLog().warn("Failed to parse plugin.xml of " + p + ", ignoring the applications and products it declares: " + e);
+			return Collections.emptySet();
+		}
+
+		Set<String> result = new HashSet<>();
+		NodeList extensions = document.getDocumentElement().getElementsByTagName("extension");
+		for (int i = 0; i != extensions.getLength(); ++i) {
+			Element extension = (Element) extensions.item(i);
+			String id = extension.getAttribute("id");
+			if (!id.isEmpty() && ROOT_EXTENSION_POINTS.contains(extension.getAttribute("point")))
+				// like the extension registry, a simple id is in the namespace of the
+				// bundle
+				result.add(id.contains(".") ? id : symbolicName + "." + id);
+		}
+		return result;
+	}
+
+	private static boolean allExist(Path dir, List<String> names) {
+		for (String name : names)
+			if (!Files.isRegularFile(dir.resolve(name)))
+				return false;
+		return true;
+	}
+
+	private static void deleteRecursively(Path p) throws IOException {
+		if (!Files.exists(p))
+			return;
+		try (Stream<Path> s = Files.walk(p)) {
+			for (Path q : s.sorted(Comparator.reverseOrder()).collect(Collectors.toList()))
+				Files.delete(q);
+		}
+	}
+
+	private static void putAll(Properties index, String key, Set<String> values) {
+		if (!values.isEmpty())
+			index.put(key, String.join(",", values));
 	}
 
 	private Artifact resolveDependency(Artifact artifact) throws MavenExecutionException {
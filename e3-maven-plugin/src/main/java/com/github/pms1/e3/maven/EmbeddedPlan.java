@@ -0,0 +1,90 @@
+package com.github.pms1.e3.maven;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The content of the embedded jar that {@code create-embedded} leaves in the
+ * products and jars it comes from, instead of extracting it to the output
+ * directory, so {@code package-embedded} can stream it into the jar directly.
+ *
+ * One line per item, with tab separated fields:
+ *
+ * <pre>
+ * bundle &lt;name in the jar&gt; &lt;zip file&gt; &lt;entry&gt;
+ * jar &lt;zip file&gt; [&lt;entry&gt;]
+ * </pre>
+ *
+ * A {@code jar} is a jar file, or a jar stored in a zip file, whose entries
+ * are added to the embedded jar except for its manifest and signatures.
+ *
+ * @author pms1
+ *
+ */
+class EmbeddedPlan {
+
+	static class Bundle {
+		final String name;
+		final Path zip;
+		final String entry;
+
+		Bundle(String name, Path zip, String entry) {
+			this.name = name;
+			this.zip = zip;
+			this.entry = entry;
+		}
+	}
+
+	static class Jar {
+		final Path zip;
+		/**
+		 * The jar in {@link #zip}, or {@code null} if {@link #zip} is the jar.
+		 */
+		final String entry;
+
+		Jar(Path zip, String entry) {
+			this.zip = zip;
+			this.entry = entry;
+		}
+	}
+
+	final List<Bundle> bundles = new ArrayList<>();
+
+	final List<Jar> jars = new ArrayList<>();
+
+	static EmbeddedPlan read(Path file) throws IOException {
+		EmbeddedPlan result = new EmbeddedPlan();
+		try (BufferedReader r = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			for (String line = r.readLine(); line != null; line = r.readLine()) {
+				String[] s = line.split("\t", -1);
+				switch (s[0]) {
+				case "bundle":
+					result.bundles.add(new Bundle(s[1], Paths.get(s[2]), s[3]));
+					break;
+				case "jar":
+					result.jars.add(new Jar(Paths.get(s[1]), s.length > 2 ? s[2] : null));
+					break;
+				default:
+					throw new IOException("Unhandled line in " + file + ": " + line);
+				}
+			}
+		}
+		return result;
+	}
+
+	void write(Path file) throws IOException {
+		try (BufferedWriter w = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+			for (Jar j : jars)
+				w.write("jar\t" + j.zip + (j.entry != null ? "\t" + j.entry : "") + "\n");
+			for (Bundle b : bundles)
+				w.write("bundle\t" + b.name + "\t" + b.zip + "\t" + b.entry + "\n");
+		}
+	}
+}
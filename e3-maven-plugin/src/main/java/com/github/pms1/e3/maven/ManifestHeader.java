@@ -0,0 +1,91 @@
+package com.github.pms1.e3.maven;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Parser for OSGi manifest headers like {@code Import-Package}, i.e. a comma
+ * separated list of clauses that each consist of one or more paths followed
+ * by attributes ({@code name=value}) and directives ({@code name:=value}).
+ *
+ * @author pms1
+ *
+ */
+class ManifestHeader {
+
+	static class Clause {
+		final List<String> paths = new ArrayList<>();
+		final Map<String, String> attributes = new LinkedHashMap<>();
+		final Map<String, String> directives = new LinkedHashMap<>();
+	}
+
+	static List<Clause> parse(String header) {
+		List<Clause> result = new ArrayList<>();
+		if (header == null)
+			return result;
+
+		for (String c : split(header, ',')) {
+			if (c.trim().isEmpty())
+				continue;
+
+			Clause clause = new Clause();
+			for (String p : split(c, ';')) {
+				p = p.trim();
+				int idx = indexOfUnquoted(p, '=');
+				if (idx == -1) {
+					clause.paths.add(p);
+				} else if (idx > 0 && p.charAt(idx - 1) == ':') {
+					clause.directives.put(p.substring(0, idx - 1).trim(), unquote(p.substring(idx + 1).trim()));
+				} else {
+					// strip the type of typed attributes, e.g. "version:Version"
+					String name = p.substring(0, idx).trim();
+					int colon = name.indexOf(':');
+					if (colon != -1)
+						name = name.substring(0, colon).trim();
+					clause.attributes.put(name, unquote(p.substring(idx + 1).trim()));
+				}
+			}
+			result.add(clause);
+		}
+
+		return result;
+	}
+
+	private static List<String> split(String s, char separator) {
+		List<String> result = new ArrayList<>();
+		boolean quoted = false;
+		int start = 0;
+		for (int i = 0; i != s.length(); ++i) {
+			char c = s.charAt(i);
+			if (c == '"')
+				quoted = !quoted;
+			else if (c == '\\' && quoted)
+				++i;
+			else if (c == separator && !quoted) {
+				result.add(s.substring(start, i));
+				start = i + 1;
+			}
+		}
+		result.add(s.substring(start));
+		return result;
+	}
+
+	private static int indexOfUnquoted(String s, char c) {
+		for (int i = 0; i != s.length(); ++i) {
+			char c1 = s.charAt(i);
+			if (c1 == '"')
+				return -1;
+			if (c1 == c)
+				return i;
+		}
+		return -1;
+	}
+
+	private static String unquote(String s) {
+		if (s.length() >= 2 && s.startsWith("\"") && s.endsWith("\""))
+			return s.substring(1, s.length() - 1).replaceAll("\\\\(.)", "$1");
+		return s;
+	}
+}
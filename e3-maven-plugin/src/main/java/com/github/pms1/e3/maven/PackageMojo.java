@@ -0,0 +1,529 @@
+package com.github.pms1.e3.maven;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugins.annotations.Component;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.apache.maven.project.MavenProject;
+import org.apache.maven.project.MavenProjectHelper;
+
+/**
+ * Package the embedded jar from the output of {@code create-embedded}.
+ *
+ * The nested bundles in {@code plugins/} are compressed already, so unlike the
+ * maven-jar-plugin this stores them without compressing them again. Their data
+ * starts at a multiple of {@link #alignment} in the embedded jar, so the
+ * launcher can read them without inflating and they could be mapped directly.
+ * The padding is written as an extra field of the local header, like
+ * {@code zipalign} does.
+ *
+ * All other entries are deflated concurrently in the common fork-join pool and
+ * written in order as they complete. If {@code create-embedded} ran with
+ * {@code e3.singlePass}, the framework, the launcher and the bundles are read
+ * from the artifacts recorded in its {@link EmbeddedPlan} instead of the output
+ * directory. If it ran with {@code e3.perClassifier}, one jar is written per
+ * classifier from the output directory, its plan and the files generated for
+ * it, and attached to the project.
+ *
+ * The {@code equinox-embedded-jar} lifecycle still packages with the
+ * maven-jar-plugin, so this goal has to be added as an execution, which is
+ * required for {@code e3.singlePass} and {@code e3.perClassifier}. The
+ * {@code default-jar} execution can then be bound to phase {@code none}.
+ * Unlike the maven-jar-plugin, no {@code META-INF/maven/} descriptors are
+ * added and the manifest is always the one written by
+ * {@code create-embedded}.
+ */
+@Mojo(name = "package-embedded", defaultPhase = LifecyclePhase.PACKAGE)
+public class PackageMojo extends AbstractMojo {
+
+	/**
+	 * 1980-01-02, so that the time fits into the header in any time zone and no
+	 * extended timestamp extra field is added.
+	 */
+	private static final long MIN_DOS_TIME = 315619200000L;
+
+	private static final Pattern SIGNATURE = Pattern.compile("META-INF/[^/]+[.]SF");
+
+	/**
+	 * With {@code e3.perClassifier}, bundles can be in a directory per
+	 * classifier.
+	 */
+	private static final Pattern BUNDLE = Pattern.compile("plugins/([^/]+/)?[^/]+[.]jar");
+
+	@Parameter(property = "project", readonly = true)
+	private MavenProject project;
+
+	@Parameter(defaultValue = "${project.build.outputDirectory}", readonly = true)
+	private File classesDir;
+
+	@Parameter(defaultValue = "${project.build.outputDirectory}/META-INF/MANIFEST.MF", readonly = true)
+	private File manifestPath;
+
+	@Parameter(defaultValue = "${project.build.directory}/e3-embedded.plan", readonly = true)
+	private File planFile;
+
+	@Parameter(defaultValue = "${project.build.directory}/e3-embedded", readonly = true)
+	private File classifiersDirectory;
+
+	@Component
+	private MavenProjectHelper projectHelper;
+
+	@Parameter(defaultValue = "${project.build.directory}", readonly = true)
+	private File outputDirectory;
+
+	@Parameter(defaultValue = "${project.build.finalName}", readonly = true)
+	private String finalName;
+
+	/**
+	 * The alignment of the data of the nested bundles in bytes. {@code 1}
+	 * disables the alignment.
+	 */
+	@Parameter(property = "e3.package.alignment", defaultValue = "4096")
+	private int alignment;
+
+	/**
+	 * Compress the nested bundles like all other entries.
+	 */
+	@Parameter(property = "e3.package.compressBundles", defaultValue = "false")
+	private boolean compressBundles;
+
+	/**
+	 * An entry of the embedded jar.
+	 */
+	private static abstract class Item {
+		final String name;
+		final long time;
+
+		Item(String name, long time) {
+			this.name = name;
+			this.time = Math.max(MIN_DOS_TIME, time);
+		}
+
+		abstract InputStream open() throws IOException;
+	}
+
+	private static class DirectoryItem extends Item {
+		DirectoryItem(String name, long time) {
+			super(name, time);
+		}
+
+		@Override
+		InputStream open() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	private static class FileItem extends Item {
+		final Path path;
+
+		FileItem(String name, Path path) throws IOException {
+			super(name, Files.getLastModifiedTime(path).toMillis());
+			this.path = path;
+		}
+
+		@Override
+		InputStream open() throws IOException {
+			return Files.newInputStream(path);
+		}
+	}
+
+	private static class ZipItem extends Item {
+		final ZipFile zip;
+		final ZipEntry entry;
+
+		ZipItem(String name, ZipFile zip, ZipEntry entry) {
+			super(name, entry.getTime());
+			this.zip = zip;
+			this.entry = entry;
+		}
+
+		@Override
+		InputStream open() throws IOException {
+			return zip.getInputStream(entry);
+		}
+	}
+
+	private static class BytesItem extends Item {
+		final byte[] data;
+
+		BytesItem(String name, long time, byte[] data) {
+			super(name, time);
+			this.data = data;
+		}
+
+		@Override
+		InputStream open() {
+			return new ByteArrayInputStream(data);
+		}
+	}
+
+	/**
+	 * An entry of another zip file, that is copied without inflating it.
+	 */
+	private static class RawItem extends Item {
+		final ZipReader.Entry entry;
+
+		RawItem(ZipReader.Entry entry) {
+			super(entry.name, entry.time);
+			this.entry = entry;
+		}
+
+		@Override
+		InputStream open() throws IOException {
+			return entry.open();
+		}
+	}
+
+	/**
+	 * The CRC-32 and size of an entry, and its data if it is deflated.
+	 */
+	private static class Data {
+		final long crc;
+		final long size;
+		final byte[] deflated;
+		final int length;
+
+		Data(long crc, long size, byte[] deflated, int length) {
+			this.crc = crc;
+			this.size = size;
+			this.deflated = deflated;
+			this.length = length;
+		}
+	}
+
+	private static class Buffer extends ByteArrayOutputStream {
+		byte[] getBuffer() {
+			return buf;
+		}
+	}
+
+	public void execute() throws MojoExecutionException, MojoFailureException {
+		if (alignment < 1 || alignment > 0xffff)
+			throw new MojoExecutionException("alignment must be between 1 and 65535: " + alignment);
+
+		try {
+			List<Path> plans = new ArrayList<>();
+			if (classifiersDirectory.isDirectory())
+				try (Stream<Path> s = Files.list(classifiersDirectory.toPath())) {
+					plans = s.filter(p -> p.getFileName().toString().endsWith(".plan")).sorted()
+							.collect(Collectors.toList());
+				}
+
+			if (plans.isEmpty()) {
+				File jar = new File(outputDirectory, finalName + ".jar");
+				getLog().info("Building jar: " + jar);
+				writeJar(jar.toPath(), classesDir.toPath(), planFile.isFile() ? planFile.toPath() : null, null,
+						manifestPath.toPath());
+				project.getArtifact().setFile(jar);
+			} else {
+				// create-embedded ran with e3.perClassifier
+				Map<String, File> jars = new TreeMap<>();
+				List<Callable<Void>> tasks = new ArrayList<>();
+				for (Path plan : plans) {
+					String name = plan.getFileName().toString();
+					String classifier = name.substring(0, name.length() - ".plan".length());
+					Path directory = plan.resolveSibling(classifier);
+					File jar = new File(outputDirectory, finalName + "-" + classifier + ".jar");
+					getLog().info("Building jar: " + jar);
+					jars.put(classifier, jar);
+					tasks.add(() -> {
+						writeJar(jar.toPath(), classesDir.toPath(), plan, directory,
+								directory.resolve(JarFile.MANIFEST_NAME));
+						return null;
+					});
+				}
+
+				// the jars are written concurrently, their entries are deflated in
+				// the common pool
+				ExecutorService executor = Executors.newFixedThreadPool(tasks.size());
+				try {
+					for (Future<Void> f : executor.invokeAll(tasks))
+						f.get();
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof IOException)
+						throw (IOException) e.getCause();
+					if (e.getCause() instanceof MojoExecutionException)
+						throw (MojoExecutionException) e.getCause();
+					throw new MojoExecutionException("failed", e.getCause());
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new MojoExecutionException("Interrupted", e);
+				} finally {
+					executor.shutdownNow();
+				}
+
+				for (Map.Entry<String, File> e : jars.entrySet())
+					projectHelper.attachArtifact(project, "jar", e.getKey(), e.getValue());
+			}
+		} catch (IOException e) {
+			throw new MojoExecutionException("failed", e);
+		}
+	}
+
+	/**
+	 * Write the embedded jar {@code jar} from the files in {@code classes}, the
+	 * content recorded in {@code planFile} and the files in {@code generated}.
+	 * The latter two may be {@code null}.
+	 */
+	private void writeJar(Path jar, Path classes, Path planFile, Path generated, Path manifestFile)
+			throws IOException, MojoExecutionException {
+		Map<Path, ZipFile> zips = new HashMap<>();
+		try {
+			Manifest manifest = new Manifest();
+			if (Files.isRegularFile(manifestFile)) {
+				try (InputStream in = Files.newInputStream(manifestFile)) {
+					manifest.read(in);
+				}
+			}
+			if (manifest.getMainAttributes().getValue(Attributes.Name.MANIFEST_VERSION) == null)
+				manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+			ByteArrayOutputStream manifestData = new ByteArrayOutputStream();
+			manifest.write(manifestData);
+
+			// later items replace earlier ones of the same name. The content of the
+			// plan comes after the output directory, like create-embedded extracting
+			// it into the output directory would.
+			Map<String, Item> items = new TreeMap<>();
+
+			if (Files.isDirectory(classes))
+				addFiles(items, classes);
+
+			if (planFile != null) {
+				EmbeddedPlan plan = EmbeddedPlan.read(planFile);
+				for (EmbeddedPlan.Jar j : plan.jars)
+					addJar(items, zips, j);
+				for (EmbeddedPlan.Bundle b : plan.bundles) {
+					ZipFile zip = open(zips, b.zip);
+					ZipEntry entry = zip.getEntry(b.entry);
+					if (entry == null)
+						throw new MojoExecutionException("Missing " + b.entry + " in " + b.zip);
+					items.put(b.name, new ZipItem(b.name, zip, entry));
+				}
+			}
+
+			if (generated != null)
+				addFiles(items, generated);
+
+			// like JarOutputStream, the manifest comes first
+			items.remove("META-INF/");
+			items.remove(JarFile.MANIFEST_NAME);
+
+			for (Item item : new ArrayList<>(items.values()))
+				for (int i = item.name.lastIndexOf('/', item.name.length() - 2); i != -1; i = item.name
+						.lastIndexOf('/', i - 1)) {
+					String parent = item.name.substring(0, i + 1);
+					if (!parent.equals("META-INF/"))
+						items.putIfAbsent(parent, new DirectoryItem(parent, item.time));
+				}
+
+			Files.createDirectories(jar.getParent());
+			try (ZipWriter zip = new ZipWriter(Files.newOutputStream(jar))) {
+				long now = System.currentTimeMillis();
+				zip.addDirectory("META-INF/", now);
+				Data m = deflate(new BytesItem(JarFile.MANIFEST_NAME, now, manifestData.toByteArray()));
+				zip.addDeflated(JarFile.MANIFEST_NAME, now, m.crc, m.size, m.deflated, m.length);
+
+				write(zip, items.values());
+			}
+		} finally {
+			for (ZipFile zip : zips.values())
+				try {
+					zip.close();
+				} catch (IOException e) {
+					getLog().warn("Failed to close " + zip.getName() + ": " + e);
+				}
+		}
+	}
+
+	private static void addFiles(Map<String, Item> items, Path root) throws IOException {
+		List<Path> paths;
+		try (Stream<Path> s = Files.walk(root)) {
+			paths = s.filter(p -> !p.equals(root)).collect(Collectors.toList());
+		}
+		for (Path p : paths) {
+			String name = root.relativize(p).toString().replace(File.separatorChar, '/');
+			if (Files.isDirectory(p))
+				items.put(name + "/", new DirectoryItem(name + "/", Files.getLastModifiedTime(p).toMillis()));
+			else
+				items.put(name, new FileItem(name, p));
+		}
+	}
+
+	/**
+	 * Add the entries of a jar, except for its manifest and signatures. The
+	 * jar is read into memory, its entries are copied as they are compressed
+	 * in it.
+	 */
+	private void addJar(Map<String, Item> items, Map<Path, ZipFile> zips, EmbeddedPlan.Jar j)
+			throws IOException, MojoExecutionException {
+		byte[] data;
+		String source;
+		if (j.entry == null) {
+			data = Files.readAllBytes(j.zip);
+			source = j.zip.toString();
+		} else {
+			ZipFile zip = open(zips, j.zip);
+			ZipEntry entry = zip.getEntry(j.entry);
+			if (entry == null)
+				throw new MojoExecutionException("Missing " + j.entry + " in " + j.zip);
+			ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.max(0, entry.getSize()));
+			try (InputStream in = zip.getInputStream(entry)) {
+				byte[] buffer = new byte[64 * 1024];
+				for (int read; (read = in.read(buffer)) != -1;)
+					out.write(buffer, 0, read);
+			}
+			data = out.toByteArray();
+			source = j.zip + "!/" + j.entry;
+		}
+
+		for (ZipReader.Entry entry : new ZipReader(data, source).getEntries()) {
+			String name = entry.name;
+			if (entry.isDirectory() || name.equals(JarFile.MANIFEST_NAME) || SIGNATURE.matcher(name).matches())
+				continue;
+			items.put(name, new RawItem(entry));
+		}
+	}
+
+	private static ZipFile open(Map<Path, ZipFile> zips, Path p) throws IOException {
+		ZipFile zip = zips.get(p);
+		if (zip == null) {
+			zip = new ZipFile(p.toFile());
+			zips.put(p, zip);
+		}
+		return zip;
+	}
+
+	private boolean isStored(Item item) {
+		return !compressBundles && BUNDLE.matcher(item.name).matches();
+	}
+
+	/**
+	 * Write {@code items} in order. Their CRC-32, and for deflated items their
+	 * data, are computed concurrently, at most a few items ahead of the one
+	 * being written so the memory needed stays bounded.
+	 */
+	private void write(ZipWriter zip, Iterable<Item> items) throws IOException {
+		int window = 2 * ForkJoinPool.getCommonPoolParallelism() + 2;
+		Deque<Map.Entry<Item, CompletableFuture<Data>>> pending = new ArrayDeque<>();
+
+		for (Item item : items) {
+			CompletableFuture<Data> data;
+			if (item instanceof DirectoryItem)
+				data = CompletableFuture.completedFuture(null);
+			else if (item instanceof RawItem)
+				data = CompletableFuture.completedFuture(
+						new Data(((RawItem) item).entry.crc, ((RawItem) item).entry.size, null, 0));
+			else if (isStored(item) && item instanceof ZipItem)
+				data = CompletableFuture.completedFuture(
+						new Data(((ZipItem) item).entry.getCrc(), ((ZipItem) item).entry.getSize(), null, 0));
+			else if (isStored(item))
+				data = CompletableFuture.supplyAsync(() -> checksum(item), ForkJoinPool.commonPool());
+			else
+				data = CompletableFuture.supplyAsync(() -> deflate(item), ForkJoinPool.commonPool());
+			pending.add(new SimpleImmutableEntry<>(item, data));
+
+			if (pending.size() > window)
+				write(zip, pending.removeFirst());
+		}
+
+		while (!pending.isEmpty())
+			write(zip, pending.removeFirst());
+	}
+
+	private void write(ZipWriter zip, Map.Entry<Item, CompletableFuture<Data>> pending) throws IOException {
+		Item item = pending.getKey();
+		Data data;
+		try {
+			data = pending.getValue().join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof UncheckedIOException)
+				throw new IOException(e.getCause().getMessage(), e.getCause().getCause());
+			throw e;
+		}
+
+		if (item instanceof DirectoryItem) {
+			zip.addDirectory(item.name, item.time);
+		} else if (item instanceof RawItem && !isStored(item)) {
+			ZipReader.Entry entry = ((RawItem) item).entry;
+			zip.addRaw(item.name, item.time, entry.method, data.crc, data.size, entry.getData());
+		} else if (data.deflated != null) {
+			zip.addDeflated(item.name, item.time, data.crc, data.size, data.deflated, data.length);
+		} else {
+			try (InputStream in = item.open()) {
+				zip.addStored(item.name, item.time, data.crc, data.size, alignment, in);
+			}
+		}
+	}
+
+	private static Data checksum(Item item) {
+		CRC32 crc = new CRC32();
+		long size = 0;
+		byte[] buffer = new byte[64 * 1024];
+		try (InputStream in = item.open()) {
+			for (int read; (read = in.read(buffer)) != -1; size += read)
+				crc.update(buffer, 0, read);
+		} catch (IOException e) {
+			throw new UncheckedIOException("Failed to read " + item.name, e);
+		}
+		return new Data(crc.getValue(), size, null, 0);
+	}
+
+	private static Data deflate(Item item) {
+		CRC32 crc = new CRC32();
+		long size = 0;
+		Buffer out = new Buffer();
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		try (InputStream in = item.open();
+				DeflaterOutputStream dos = new DeflaterOutputStream(out, deflater, 64 * 1024)) {
+			byte[] buffer = new byte[64 * 1024];
+			for (int read; (read = in.read(buffer)) != -1; size += read) {
+				crc.update(buffer, 0, read);
+				dos.write(buffer, 0, read);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException("Failed to deflate " + item.name, e);
+		} finally {
+			deflater.end();
+		}
+		return new Data(crc.getValue(), size, out.getBuffer(), out.size());
+	}
+}
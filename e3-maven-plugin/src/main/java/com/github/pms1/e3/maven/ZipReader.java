@@ -0,0 +1,153 @@
+package com.github.pms1.e3.maven;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Reads the central directory of a zip file in memory, so the compressed data
+ * of its entries can be copied to a {@link ZipWriter} as is, without inflating
+ * and deflating it again. ZIP64 and encryption are not supported.
+ *
+ * @author pms1
+ *
+ */
+class ZipReader {
+
+	private static final int END_SIZE = 22;
+
+	private static final int CENTRAL_HEADER_SIZE = 46;
+
+	private static final int LOCAL_HEADER_SIZE = 30;
+
+	static class Entry {
+		final String name;
+		final int method;
+		final long crc;
+		final long size;
+		final long time;
+		private final ByteBuffer data;
+
+		private Entry(String name, int method, long crc, long size, long time, ByteBuffer data) {
+			this.name = name;
+			this.method = method;
+			this.crc = crc;
+			this.size = size;
+			this.time = time;
+			this.data = data;
+		}
+
+		boolean isDirectory() {
+			return name.endsWith("/");
+		}
+
+		/**
+		 * @return the data as stored in the zip file, i.e. compressed with
+		 *         {@link #method}
+		 */
+		ByteBuffer getData() {
+			return data.duplicate();
+		}
+
+		InputStream open() throws ZipException {
+			ByteBuffer b = getData();
+			InputStream in = new ByteArrayInputStream(b.array(), b.arrayOffset() + b.position(), b.remaining());
+			switch (method) {
+			case ZipEntry.STORED:
+				return in;
+			case ZipEntry.DEFLATED:
+				return new InflaterInputStream(in, new Inflater(true));
+			default:
+				throw new ZipException("Unsupported compression method " + method + " of " + name);
+			}
+		}
+	}
+
+	private final List<Entry> entries;
+
+	/**
+	 * @param source
+	 *            the name of the zip file for error messages
+	 */
+	ZipReader(byte[] zip, String source) throws ZipException {
+		ByteBuffer b = ByteBuffer.wrap(zip).order(ByteOrder.LITTLE_ENDIAN);
+
+		int end = -1;
+		for (int i = zip.length - END_SIZE; i >= Math.max(0, zip.length - END_SIZE - 0xffff); --i)
+			if (b.getInt(i) == 0x06054b50) {
+				end = i;
+				break;
+			}
+		if (end == -1)
+			throw new ZipException("Missing end of central directory in " + source);
+
+		int count = Short.toUnsignedInt(b.getShort(end + 10));
+		long offset = Integer.toUnsignedLong(b.getInt(end + 16));
+		if (count == 0xffff || offset == 0xffffffffL)
+			throw new ZipException("ZIP64 is not supported: " + source);
+
+		List<Entry> entries = new ArrayList<>(count);
+		int p = (int) offset;
+		for (int i = 0; i != count; ++i) {
+			if (p + CENTRAL_HEADER_SIZE > zip.length || b.getInt(p) != 0x02014b50)
+				throw new ZipException("Invalid central directory in " + source);
+			int flags = Short.toUnsignedInt(b.getShort(p + 8));
+			int method = Short.toUnsignedInt(b.getShort(p + 10));
+			long dosTime = Integer.toUnsignedLong(b.getInt(p + 12));
+			long crc = Integer.toUnsignedLong(b.getInt(p + 16));
+			long compressedSize = Integer.toUnsignedLong(b.getInt(p + 20));
+			long size = Integer.toUnsignedLong(b.getInt(p + 24));
+			int nameLength = Short.toUnsignedInt(b.getShort(p + 28));
+			int extraLength = Short.toUnsignedInt(b.getShort(p + 30));
+			int commentLength = Short.toUnsignedInt(b.getShort(p + 32));
+			long local = Integer.toUnsignedLong(b.getInt(p + 42));
+			// like ZipFile, names are UTF-8 whether flagged or not
+			String name = new String(zip, p + CENTRAL_HEADER_SIZE, nameLength, StandardCharsets.UTF_8);
+			p += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+
+			if ((flags & 1) != 0)
+				throw new ZipException("Encrypted entries are not supported: " + name + " in " + source);
+			if (compressedSize == 0xffffffffL || size == 0xffffffffL || local == 0xffffffffL)
+				throw new ZipException("ZIP64 is not supported: " + name + " in " + source);
+			if (local + LOCAL_HEADER_SIZE > zip.length || b.getInt((int) local) != 0x04034b50)
+				throw new ZipException("Invalid local header of " + name + " in " + source);
+
+			long start = local + LOCAL_HEADER_SIZE + Short.toUnsignedInt(b.getShort((int) local + 26))
+					+ Short.toUnsignedInt(b.getShort((int) local + 28));
+			if (start + compressedSize > zip.length)
+				throw new ZipException("Truncated data of " + name + " in " + source);
+			ByteBuffer data = ByteBuffer.wrap(zip, (int) start, (int) compressedSize).slice();
+
+			entries.add(new Entry(name, method, crc, size, getTime(dosTime), data));
+		}
+		this.entries = Collections.unmodifiableList(entries);
+	}
+
+	List<Entry> getEntries() {
+		return entries;
+	}
+
+	private static long getTime(long dosTime) {
+		try {
+			return LocalDateTime
+					.of((int) (dosTime >> 25 & 0x7f) + 1980, (int) (dosTime >> 21 & 0x0f), (int) (dosTime >> 16 & 0x1f),
+							(int) (dosTime >> 11 & 0x1f), (int) (dosTime >> 5 & 0x3f), (int) (dosTime << 1 & 0x3e))
+					.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+		} catch (DateTimeException e) {
+			// invalid, e.g. 0
+			return 0;
+		}
+	}
+}
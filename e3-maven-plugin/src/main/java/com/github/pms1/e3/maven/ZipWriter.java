@@ -0,0 +1,208 @@
+package com.github.pms1.e3.maven;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.zip.ZipEntry;
+
+/**
+ * Writes a zip file from entries whose CRC-32 and sizes are known before their
+ * data is written. Unlike {@link java.util.zip.ZipOutputStream} it accepts
+ * data that is deflated already, e.g. concurrently or by another zip file, and
+ * it can align the data of stored entries.
+ *
+ * Alignment is done like {@code zipalign}, with an extra field of the local
+ * header that pads it to the alignment. ZIP64 is not supported.
+ *
+ * @author pms1
+ *
+ */
+class ZipWriter implements Closeable {
+
+	/**
+	 * The header ID of the extra field that pads the local header.
+	 */
+	static final int ALIGNMENT_EXTRA_ID = 0xd935;
+
+	private static final int LOCAL_HEADER_SIZE = 30;
+
+	/**
+	 * Names are always UTF-8, like {@link java.util.zip.ZipOutputStream} with
+	 * that charset.
+	 */
+	private static final int FLAG_UTF8 = 0x800;
+
+	private final OutputStream out;
+
+	private long offset;
+
+	private final ByteArrayOutputStream central = new ByteArrayOutputStream();
+
+	private int count;
+
+	ZipWriter(OutputStream out) {
+		this.out = new BufferedOutputStream(out, 64 * 1024);
+	}
+
+	void addDirectory(String name, long time) throws IOException {
+		addHeaders(name, time, ZipEntry.STORED, 0, 0, 0, 0);
+	}
+
+	/**
+	 * Add an entry whose data is {@code data} deflated without zlib header.
+	 */
+	void addDeflated(String name, long time, long crc, long size, byte[] data, int len) throws IOException {
+		addHeaders(name, time, ZipEntry.DEFLATED, crc, size, len, 0);
+		write(data, 0, len);
+	}
+
+	/**
+	 * Add an entry whose data is {@code data} compressed with {@code method},
+	 * e.g. copied from another zip file.
+	 */
+	void addRaw(String name, long time, int method, long crc, long size, ByteBuffer data) throws IOException {
+		addHeaders(name, time, method, crc, size, data.remaining(), 0);
+		if (data.hasArray()) {
+			write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+		} else {
+			byte[] buffer = new byte[64 * 1024];
+			for (ByteBuffer b = data.duplicate(); b.hasRemaining();) {
+				int len = Math.min(buffer.length, b.remaining());
+				b.get(buffer, 0, len);
+				write(buffer, 0, len);
+			}
+		}
+	}
+
+	/**
+	 * Add an entry whose data is the first {@code size} bytes of {@code data}.
+	 *
+	 * @param alignment
+	 *            if not 0, the data starts at a multiple of it
+	 */
+	void addStored(String name, long time, long crc, long size, int alignment, InputStream data) throws IOException {
+		addHeaders(name, time, ZipEntry.STORED, crc, size, size, alignment);
+		byte[] buffer = new byte[64 * 1024];
+		for (long remaining = size; remaining != 0;) {
+			int read = data.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+			if (read == -1)
+				throw new EOFException("Unexpected end of data of " + name);
+			write(buffer, 0, read);
+			remaining -= read;
+		}
+	}
+
+	private void addHeaders(String name, long time, int method, long crc, long size, long compressedSize,
+			int alignment) throws IOException {
+		if (count == 0xffff)
+			throw new IOException("Too many entries for a zip file without ZIP64");
+		if (offset > 0xffffffffL || size > 0xffffffffL || compressedSize > 0xffffffffL)
+			throw new IOException("Too large for a zip file without ZIP64: " + name);
+
+		byte[] n = name.getBytes(StandardCharsets.UTF_8);
+		int version = method == ZipEntry.STORED ? 10 : 20;
+		long dosTime = getDosTime(time);
+
+		byte[] extra = new byte[0];
+		byte[] centralExtra = extra;
+		if (alignment != 0) {
+			long start = offset + LOCAL_HEADER_SIZE + n.length + 6;
+			int padding = (int) ((alignment - start % alignment) % alignment);
+			extra = new byte[6 + padding];
+			putShort(extra, 0, ALIGNMENT_EXTRA_ID);
+			putShort(extra, 2, 2 + padding);
+			putShort(extra, 4, alignment);
+			// the central directory does not need the padding
+			centralExtra = new byte[6];
+			System.arraycopy(extra, 0, centralExtra, 0, 6);
+			putShort(centralExtra, 2, 2);
+		}
+
+		byte[] local = new byte[LOCAL_HEADER_SIZE];
+		putInt(local, 0, 0x04034b50);
+		putShort(local, 4, version);
+		putShort(local, 6, FLAG_UTF8);
+		putShort(local, 8, method);
+		putInt(local, 10, dosTime);
+		putInt(local, 14, crc);
+		putInt(local, 18, compressedSize);
+		putInt(local, 22, size);
+		putShort(local, 26, n.length);
+		putShort(local, 28, extra.length);
+
+		byte[] cen = new byte[46];
+		putInt(cen, 0, 0x02014b50);
+		putShort(cen, 4, version);
+		putShort(cen, 6, version);
+		putShort(cen, 8, FLAG_UTF8);
+		putShort(cen, 10, method);
+		putInt(cen, 12, dosTime);
+		putInt(cen, 16, crc);
+		putInt(cen, 20, compressedSize);
+		putInt(cen, 24, size);
+		putShort(cen, 28, n.length);
+		putShort(cen, 30, centralExtra.length);
+		putInt(cen, 42, offset);
+		central.write(cen);
+		central.write(n);
+		central.write(centralExtra);
+		++count;
+
+		write(local, 0, local.length);
+		write(n, 0, n.length);
+		write(extra, 0, extra.length);
+	}
+
+	private void write(byte[] b, int off, int len) throws IOException {
+		out.write(b, off, len);
+		offset += len;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			long start = offset;
+			if (start > 0xffffffffL)
+				throw new IOException("Too large for a zip file without ZIP64");
+			byte[] cen = central.toByteArray();
+			write(cen, 0, cen.length);
+
+			byte[] end = new byte[22];
+			putInt(end, 0, 0x06054b50);
+			putShort(end, 8, count);
+			putShort(end, 10, count);
+			putInt(end, 12, cen.length);
+			putInt(end, 16, start);
+			write(end, 0, end.length);
+		} finally {
+			out.close();
+		}
+	}
+
+	private static long getDosTime(long time) {
+		LocalDateTime d = LocalDateTime.ofInstant(Instant.ofEpochMilli(time), ZoneId.systemDefault());
+		return (d.getYear() - 1980L) << 25 | d.getMonthValue() << 21 | d.getDayOfMonth() << 16 | d.getHour() << 11
+				| d.getMinute() << 5 | d.getSecond() >> 1;
+	}
+
+	private static void putShort(byte[] b, int off, int value) {
+		b[off] = (byte) value;
+		b[off + 1] = (byte) (value >> 8);
+	}
+
+	private static void putInt(byte[] b, int off, long value) {
+		b[off] = (byte) value;
+		b[off + 1] = (byte) (value >> 8);
+		b[off + 2] = (byte) (value >> 16);
+		b[off + 3] = (byte) (value >> 24);
+	}
+}